@@ -0,0 +1,27 @@
+package com.realexan.executor.ordered;
+
+/**
+ * 
+ * An <code>OrderedRunnable</code> whose queued instances can be superseded by a
+ * newer one. When such a task is submitted to the <code>OrderedExecutor</code>
+ * while an older task with the same ordering key and the same coalescing token
+ * is still waiting for its turn, the new task takes the place of the older one
+ * in the queue, and the older one is never executed. Its future, if any, is
+ * completed with a <code>TaskSupersededException</code>.
+ * <p>
+ * This suits tasks where only the latest value matters, like state
+ * synchronization updates.
+ * 
+ * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+ */
+public interface CoalescingOrderedRunnable extends OrderedRunnable {
+
+    /**
+     * The token which identifies the tasks that supersede each other, among the
+     * tasks sharing an ordering key. A null token means the task is not coalesced.
+     * 
+     * @return the coalescing token for this task.
+     */
+    Object getCoalescingToken();
+
+}
@@ -0,0 +1,247 @@
+package com.realexan.executor.ordered;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.function.ToIntFunction;
+
+/**
+ *
+ * A queue of elements, which belong to groups, where the groups share the
+ * dispatches in proportion to their weights, using deficit round robin. Within
+ * a group, the elements are dispatched in their natural order.
+ * <p>
+ * The groups with elements queued take turns in a round. On its turn, a group
+ * gets a quantum of credit (the deficit), proportional to its weight, and keeps
+ * getting its elements dispatched as long as the credit lasts. The cost of a
+ * dispatched element, like the time taken to process it, is charged to its
+ * group afterwards, and thus a group may overdraw the credit, which is paid back
+ * in its next turns. A group which gets an element back while processing the
+ * last one, like a busy key going back to the ready queue, keeps its turn if it
+ * has credit left. A group with no elements queued or being processed is
+ * forgotten, along with its credit or debt.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+ *
+ * @param <E> the type of the elements.
+ */
+class DeficitRoundRobinQueue<E extends Comparable<? super E>> {
+
+    /**
+     * The groups which have elements queued, or being processed.
+     */
+    private final Map<Object, Group> groups = new HashMap<>();
+
+    /**
+     * The groups which have elements queued, in the order of their turns.
+     */
+    private final Deque<Group> round = new ArrayDeque<>();
+
+    /**
+     * The group which got the last element dispatched.
+     */
+    private Group current;
+
+    /**
+     * The weights of the groups.
+     */
+    private final ToIntFunction<Object> weights;
+
+    /**
+     * The credit given to a group of weight one, on its turn.
+     */
+    private final long quantum;
+
+    /**
+     * The count of the elements queued.
+     */
+    private int size;
+
+    /**
+     * Constructor.
+     *
+     * @param weights the weights of the groups, which must be positive.
+     * @param quantum the credit given to a group of weight one, on its turn, in
+     *                the unit of the cost charged.
+     */
+    DeficitRoundRobinQueue(ToIntFunction<Object> weights, long quantum) {
+        this.weights = weights;
+        this.quantum = quantum;
+    }
+
+    /**
+     * Queues the element in its group.
+     *
+     * @param groupKey the group of the element.
+     * @param element  the element.
+     */
+    void add(Object groupKey, E element) {
+        Group group = groups.get(groupKey);
+        if (group == null) {
+            group = new Group(groupKey);
+            groups.put(groupKey, group);
+        }
+        if (group.elements.isEmpty()) {
+            if (group == current && group.deficit > 0) {
+                round.addFirst(group);
+            } else {
+                round.addLast(group);
+            }
+        }
+        group.elements.add(element);
+        ++size;
+    }
+
+    /**
+     * Takes the next element out, to be processed. The cost of processing it must
+     * be charged to its group afterwards.
+     *
+     * @return the next element, or null if the queue is empty.
+     */
+    E poll() {
+        if (size == 0) {
+            return null;
+        }
+        Group group = round.peek();
+        if (group.deficit <= 0) {
+            replenish();
+            group = round.peek();
+        }
+        E element = group.elements.poll();
+        --size;
+        ++group.processing;
+        current = group;
+        if (group.elements.isEmpty()) {
+            round.poll();
+        }
+        return element;
+    }
+
+    /**
+     * Plays out the turns of the groups, until one of them has credit, giving
+     * each group a quantum on each of its turns without credit. The count of
+     * turns each group would take is worked out in one go, rather than going
+     * round after round, as a group deep in debt after an expensive element would
+     * take as many rounds as its debt is worth in quanta.
+     */
+    private void replenish() {
+        int turns = round.size();
+        long[] grants = new long[turns];
+        // The count of turns played out, till the first group with credit.
+        long played = Long.MAX_VALUE;
+        int i = 0;
+        for (Group group : round) {
+            grants[i] = weights.applyAsInt(group.key) * quantum;
+            long rounds = group.deficit > 0 ? 0 : -group.deficit / grants[i] + 1;
+            played = Math.min(played, rounds * turns + i);
+            ++i;
+        }
+        i = 0;
+        for (Group group : round) {
+            // The turns of the group in the turns played out.
+            group.deficit += (played - i + turns - 1) / turns * grants[i];
+            ++i;
+        }
+        for (long rotation = played % turns; rotation > 0; --rotation) {
+            round.addLast(round.poll());
+        }
+    }
+
+    /**
+     * Removes the element, if it is still queued.
+     *
+     * @param groupKey the group of the element.
+     * @param element  the element.
+     * @return true if the element was removed.
+     */
+    boolean remove(Object groupKey, E element) {
+        Group group = groups.get(groupKey);
+        if (group == null || !group.elements.remove(element)) {
+            return false;
+        }
+        --size;
+        if (group.elements.isEmpty()) {
+            round.remove(group);
+            retireIfIdle(group);
+        }
+        return true;
+    }
+
+    /**
+     * Charges the cost of processing an element, which was taken out by
+     * <code>poll()</code>, to its group.
+     *
+     * @param groupKey the group of the element.
+     * @param cost     the cost of processing the element.
+     */
+    void charge(Object groupKey, long cost) {
+        Group group = groups.get(groupKey);
+        group.deficit -= cost;
+        --group.processing;
+        retireIfIdle(group);
+    }
+
+    /**
+     * Returns the count of the elements queued.
+     *
+     * @return the count of the elements queued.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Forgets the group, along with its debt, if none of its elements is queued or
+     * being processed.
+     *
+     * @param group the group.
+     */
+    private void retireIfIdle(Group group) {
+        if (group.processing == 0 && group.elements.isEmpty()) {
+            groups.remove(group.key);
+            if (group == current) {
+                current = null;
+            }
+        }
+    }
+
+    /**
+     * The state of a group.
+     *
+     * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+     *
+     */
+    private class Group {
+
+        /**
+         * The key of the group.
+         */
+        private final Object key;
+
+        /**
+         * The elements queued, in their natural order.
+         */
+        private final Queue<E> elements = new PriorityQueue<>();
+
+        /**
+         * The credit left for the group, which goes negative when overdrawn.
+         */
+        private long deficit;
+
+        /**
+         * The count of the elements of the group being processed.
+         */
+        private int processing;
+
+        Group(Object key) {
+            this.key = key;
+        }
+
+    }
+
+}
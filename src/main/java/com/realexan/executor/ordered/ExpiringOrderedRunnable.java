@@ -0,0 +1,24 @@
+package com.realexan.executor.ordered;
+
+/**
+ * 
+ * An <code>OrderedRunnable</code> which is of no use after a deadline, like an
+ * update of a view which a newer one would overwrite anyway. When its turn comes
+ * after the deadline, an <code>OrderedExecutor</code> skips it, without running
+ * it, so that it doesn't hold up the fresher tasks of its key. The future of
+ * such a task, if any, is completed with a <code>TaskExpiredException</code>,
+ * and the task is reported to the expiry handler of the executor.
+ * 
+ * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+ */
+public interface ExpiringOrderedRunnable extends OrderedRunnable {
+
+    /**
+     * Returns the time after which this task is not to be run, as a value of
+     * <code>System.nanoTime()</code>.
+     * 
+     * @return the deadline of this task, in nanoseconds.
+     */
+    long getDeadlineNanos();
+
+}
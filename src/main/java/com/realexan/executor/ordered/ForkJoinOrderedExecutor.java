@@ -0,0 +1,312 @@
+package com.realexan.executor.ordered;
+
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * An alternative to <code>OrderedExecutor</code>, built on a work stealing
+ * <code>ForkJoinPool</code>. The ordering guarantees are the same: tasks with
+ * the same ordering key are executed in series, in the order they were
+ * submitted, while tasks with different keys are executed in parallel.
+ * <p>
+ * Each ordering key gets a mailbox, as in <code>LockFreeOrderedExecutor</code>,
+ * which is itself a <code>ForkJoinTask</code>. A mailbox runs a single task per
+ * turn, and if more tasks are left, forks itself again onto the deque of the
+ * worker thread running it. Thus a busy key stays with the same worker, while
+ * idle workers steal the ready keys from the deques of busy ones, instead of
+ * all the keys going through a central queue. Mailboxes scheduled by threads
+ * outside the pool go through the submission queues of the pool.
+ *
+ * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+ */
+public class ForkJoinOrderedExecutor implements OrderedExecutorService {
+
+    /**
+     * The map of ordering keys to their mailboxes. A key has a mailbox only while
+     * it has tasks which are not yet finished.
+     */
+    private final ConcurrentMap<Object, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+    /**
+     * The count of tasks waiting in the mailboxes.
+     */
+    private final LongAdder queuedTaskCount = new LongAdder();
+
+    /**
+     * The actual ForkJoinPool.
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * Name of this instance.
+     */
+    private final String name;
+
+    /**
+     * Constructor, which creates a worker per available processor.
+     */
+    public ForkJoinOrderedExecutor(String name) {
+        this(name, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name        the name of the executor.
+     * @param parallelism the count of worker threads.
+     */
+    public ForkJoinOrderedExecutor(String name, int parallelism) {
+        this.name = name + "ForkJoinOrderedExecutor";
+        AtomicInteger threadNumber = new AtomicInteger(1);
+        // FIFO deques, so that a mailbox forking itself goes behind the other
+        // mailboxes forked by the same worker.
+        pool = new ForkJoinPool(parallelism, p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName(this.name + "-pool-" + threadNumber.getAndIncrement());
+            return thread;
+        }, null, true);
+    }
+
+    /**
+     * Submits an <code>OrderedRunnable</code> to be executed.
+     * <p>
+     * If there are unfinished tasks with the same ordering key, as the passed
+     * ordered runnable, this task will be appended to the mailbox of the key, and
+     * will be executed after them. Otherwise, the mailbox is scheduled on the pool
+     * right away.
+     *
+     * @param item the task to be executed.
+     * @return a CompletableFuture which gets completed when the task finishes. It
+     *         can be waited on, or used to compose further actions.
+     * @throws RejectedExecutionException if the executor has been shut down.
+     */
+    @Override
+    public CompletableFuture<Void> submit(OrderedRunnable item) {
+        Objects.requireNonNull(item, "The task cannot be null");
+        Object orderingKey = Objects.requireNonNull(item.getOrderingKey(),
+                "The ordering key for the task cannot be null");
+        if (pool.isShutdown()) {
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+        OrderedFutureRunnable<Void> future = new OrderedFutureRunnable<>(item);
+        while (true) {
+            Mailbox mailbox = mailboxes.get(orderingKey);
+            if (mailbox == null) {
+                Mailbox created = new Mailbox(orderingKey);
+                mailbox = mailboxes.putIfAbsent(orderingKey, created);
+                if (mailbox == null) {
+                    mailbox = created;
+                }
+            }
+            int previousCount = mailbox.reserve();
+            if (previousCount < 0) {
+                // The mailbox got retired, and is about to be removed from the map.
+                Thread.yield();
+                continue;
+            }
+            queuedTaskCount.increment();
+            mailbox.tasks.offer(future);
+            if (previousCount == 0) {
+                try {
+                    schedule(mailbox);
+                } catch (RejectedExecutionException ree) {
+                    mailbox.reject();
+                    throw ree;
+                }
+            }
+            return future;
+        }
+    }
+
+    /**
+     * Schedules the mailbox on the pool. A worker of the pool forks it onto its own
+     * deque, from where the other workers can steal it.
+     *
+     * @param mailbox the mailbox which has tasks ready to run.
+     * @throws RejectedExecutionException if the pool has been shut down.
+     */
+    private void schedule(Mailbox mailbox) {
+        if (ForkJoinTask.getPool() == pool) {
+            mailbox.fork();
+        } else {
+            pool.execute(mailbox);
+        }
+    }
+
+    /**
+     * Returns the count of tasks queued, due to tasks with the same ordering keys
+     * being executed.
+     *
+     * @return the count of queued tasks.
+     */
+    @Override
+    public int getQueuedTaskCount() {
+        return queuedTaskCount.intValue();
+    }
+
+    /**
+     * Returns the count of tasks being executed at the moment.
+     *
+     * @return the count of tasks being executed.
+     */
+    public int getExecutingTaskCount() {
+        return mailboxes.size();
+    }
+
+    /**
+     * Returns the count of mailboxes stolen by the workers from each other.
+     *
+     * @return the steal count.
+     */
+    public long getStealCount() {
+        return pool.getStealCount();
+    }
+
+    /**
+     * Returns the pool size.
+     *
+     * @return the pool size.
+     */
+    public int getPoolSize() {
+        return pool.getPoolSize();
+    }
+
+    /**
+     * Shuts down the executor. The tasks waiting in the mailboxes will be rejected.
+     */
+    @Override
+    public void shutDown() {
+        pool.shutdown();
+    }
+
+    /**
+     * The mailbox of an ordering key. It never completes as a
+     * <code>ForkJoinTask</code>, so that it can be forked again and again.
+     *
+     * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+     *
+     */
+    private class Mailbox extends ForkJoinTask<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The ordering key shared by the tasks in this mailbox.
+         */
+        private final Object key;
+
+        /**
+         * The tasks yet to be executed, in the order of submission.
+         */
+        private final Queue<OrderedFutureRunnable<Void>> tasks = new ConcurrentLinkedQueue<>();
+
+        /**
+         * The count of tasks which are submitted and not yet finished. A negative
+         * value means the mailbox has been retired, and cannot take any more tasks.
+         */
+        private final AtomicInteger count = new AtomicInteger();
+
+        Mailbox(Object key) {
+            this.key = key;
+        }
+
+        /**
+         * Reserves a slot for a task in the mailbox.
+         *
+         * @return the count of unfinished tasks before the reservation, which is zero
+         *         if the mailbox was idle. A negative value means the mailbox has
+         *         been retired and nothing got reserved.
+         */
+        int reserve() {
+            while (true) {
+                int current = count.get();
+                if (current < 0 || count.compareAndSet(current, current + 1)) {
+                    return current;
+                }
+            }
+        }
+
+        /**
+         * Marks the task at the head as finished.
+         *
+         * @return true if there are more tasks to be executed, false if the mailbox
+         *         became idle.
+         */
+        boolean finish() {
+            if (count.decrementAndGet() > 0) {
+                return true;
+            }
+            if (count.compareAndSet(0, -1)) {
+                mailboxes.remove(key, this);
+            }
+            return false;
+        }
+
+        /**
+         * Takes the task at the head. A producer reserves its slot before appending
+         * the task, and hence the task can lag behind the count for a short while.
+         *
+         * @return the task at the head.
+         */
+        OrderedFutureRunnable<Void> take() {
+            OrderedFutureRunnable<Void> task;
+            while ((task = tasks.poll()) == null) {
+                Thread.yield();
+            }
+            queuedTaskCount.decrement();
+            return task;
+        }
+
+        /**
+         * Completes the futures of all the tasks in the mailbox with a rejection,
+         * until it becomes idle. Must be called only by the thread which owns the
+         * mailbox.
+         */
+        void reject() {
+            do {
+                take().reject();
+            } while (finish());
+        }
+
+        @Override
+        protected boolean exec() {
+            if (pool.isShutdown()) {
+                reject();
+                return false;
+            }
+            // Completes the future with the outcome, and never throws.
+            take().run();
+            if (finish()) {
+                try {
+                    schedule(this);
+                } catch (RejectedExecutionException ree) {
+                    reject();
+                }
+            }
+            // Never complete, so that the mailbox can be forked again.
+            return false;
+        }
+
+        @Override
+        public Void getRawResult() {
+            return null;
+        }
+
+        @Override
+        protected void setRawResult(Void value) {
+        }
+
+    }
+
+}
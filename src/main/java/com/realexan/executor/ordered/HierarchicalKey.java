@@ -0,0 +1,122 @@
+package com.realexan.executor.ordered;
+
+import java.util.Objects;
+
+/**
+ *
+ * An ordering key which is a path in a hierarchy, like <code>topic</code> and
+ * <code>topic/partition-1</code>. In an <code>OrderedExecutor</code>, the tasks
+ * of a key are ordered with respect to the tasks of its ancestors and
+ * descendants, while the tasks of unrelated keys, like siblings, run in
+ * parallel. That is, a task of a key waits for the tasks of its descendants
+ * submitted before it, and the tasks of its descendants submitted after it wait
+ * for it.
+ * <p>
+ * A hierarchical key is distinct from any other kind of key, including the
+ * object naming its last segment.
+ *
+ * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+ */
+public final class HierarchicalKey {
+
+    /**
+     * The parent key, null for a root.
+     */
+    private final HierarchicalKey parent;
+
+    /**
+     * The last segment of the path.
+     */
+    private final Object segment;
+
+    /**
+     * The count of segments in the path.
+     */
+    private final int depth;
+
+    /**
+     * The cached hash code.
+     */
+    private final int hash;
+
+    private HierarchicalKey(HierarchicalKey parent, Object segment) {
+        this.parent = parent;
+        this.segment = Objects.requireNonNull(segment, "A segment of the key cannot be null");
+        this.depth = parent == null ? 1 : parent.depth + 1;
+        this.hash = 31 * (parent == null ? 0 : parent.hash) + segment.hashCode();
+    }
+
+    /**
+     * Creates the key with the given path.
+     *
+     * @param path the segments of the path, from the root.
+     * @return the key.
+     * @throws IllegalArgumentException if the path is empty.
+     */
+    public static HierarchicalKey of(Object... path) {
+        if (path.length == 0) {
+            throw new IllegalArgumentException("The path of the key cannot be empty");
+        }
+        HierarchicalKey key = null;
+        for (Object segment : path) {
+            key = new HierarchicalKey(key, segment);
+        }
+        return key;
+    }
+
+    /**
+     * Creates a child of this key.
+     *
+     * @param segment the last segment of the path of the child.
+     * @return the child key.
+     */
+    public HierarchicalKey child(Object segment) {
+        return new HierarchicalKey(this, segment);
+    }
+
+    /**
+     * Returns the parent of this key.
+     *
+     * @return the parent key, or null if this is a root.
+     */
+    public HierarchicalKey getParent() {
+        return parent;
+    }
+
+    /**
+     * Returns the root of the hierarchy of this key.
+     *
+     * @return the root key.
+     */
+    public HierarchicalKey getRoot() {
+        HierarchicalKey root = this;
+        while (root.parent != null) {
+            root = root.parent;
+        }
+        return root;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof HierarchicalKey)) {
+            return false;
+        }
+        HierarchicalKey other = (HierarchicalKey) obj;
+        return hash == other.hash && depth == other.depth && segment.equals(other.segment)
+                && Objects.equals(parent, other.parent);
+    }
+
+    @Override
+    public String toString() {
+        return parent == null ? String.valueOf(segment) : parent + "/" + segment;
+    }
+
+}
@@ -0,0 +1,153 @@
+package com.realexan.executor.ordered;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * A histogram of durations in nanoseconds, which can be recorded concurrently
+ * without any lock. The durations are counted in log-linear buckets, each power
+ * of two split into 8 buckets, and hence the percentiles are accurate to within
+ * 12.5%.
+ *
+ * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+ *
+ */
+public class LatencyHistogram {
+
+    /**
+     * The bits of a duration, below its highest bit, which select the bucket
+     * within its power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The count of buckets, which covers every non negative long value.
+     */
+    private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    /**
+     * The counts of the durations in the buckets.
+     */
+    private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder sum = new LongAdder();
+
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos the duration in nanoseconds. Negative values, which can only be
+     *              due to clock skew between threads, are counted as zero.
+     */
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets[bucketOf(nanos)].increment();
+        count.increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    /**
+     * Returns the count of durations recorded.
+     *
+     * @return the count of durations recorded.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the mean of the durations recorded.
+     *
+     * @return the mean duration in nanoseconds, or zero if none is recorded.
+     */
+    public long getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    /**
+     * Returns the maximum of the durations recorded.
+     *
+     * @return the maximum duration in nanoseconds.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the duration below which the given percentage of the recorded
+     * durations fall.
+     *
+     * @param percentile the percentile, between 0 and 100.
+     * @return the duration in nanoseconds, or zero if none is recorded.
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Invalid percentile " + percentile);
+        }
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Returns the bucket of the duration.
+     *
+     * @param nanos the duration, which is not negative.
+     * @return the index of the bucket.
+     */
+    private static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKET_COUNT) {
+            return (int) nanos;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(nanos);
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * Returns the highest duration counted in the bucket.
+     *
+     * @param bucket the index of the bucket.
+     * @return the highest duration of the bucket.
+     */
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKET_COUNT) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKET_COUNT - 1;
+        long lowerBound = (long) (SUB_BUCKET_COUNT + bucket % SUB_BUCKET_COUNT) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+
+}
@@ -0,0 +1,264 @@
+package com.realexan.executor.ordered;
+
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.realexan.thread.NamedThreadFactory;
+
+/**
+ *
+ * An alternative to <code>OrderedExecutor</code>, which doesn't hold any lock
+ * while submitting or dispatching tasks. The ordering guarantees are the same:
+ * tasks with the same ordering key are executed in series, in the order they
+ * were submitted, while tasks with different keys are executed in parallel.
+ * <p>
+ * Each ordering key gets a mailbox, which is a lock free queue along with a
+ * count of the tasks that are submitted to it and not yet finished. Producers
+ * append to the mailbox of the key after incrementing the count, and the
+ * producer which increments the count from zero, i.e. flips the mailbox from
+ * idle to scheduled, is the only one that hands the mailbox over to the pool.
+ * The thread running the mailbox executes its tasks one at a time, and retires
+ * the mailbox once the count drops back to zero. Cancelled tasks stay in the
+ * mailbox until their turn comes, and are skipped then.
+ *
+ * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+ */
+public class LockFreeOrderedExecutor implements OrderedExecutorService {
+
+    /**
+     * The map of ordering keys to their mailboxes. A key has a mailbox only while
+     * it has tasks which are not yet finished.
+     */
+    private final ConcurrentMap<Object, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+    /**
+     * The count of tasks waiting in the mailboxes.
+     */
+    private final LongAdder queuedTaskCount = new LongAdder();
+
+    /**
+     * The actual ThreadPoolExecutor.
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Name of this instance.
+     */
+    private final String name;
+
+    /**
+     * Constructor.
+     */
+    public LockFreeOrderedExecutor(String name) {
+        this.name = name + "LockFreeOrderedExecutor";
+        final ThreadFactory threadFactory = new NamedThreadFactory(this.name + "-pool-");
+        executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                threadFactory);
+    }
+
+    /**
+     * Submits an <code>OrderedRunnable</code> to be executed.
+     * <p>
+     * If there are unfinished tasks with the same ordering key, as the passed
+     * ordered runnable, this task will be appended to the mailbox of the key, and
+     * will be executed after them. Otherwise, the mailbox is immediately handed
+     * over to the pool for execution.
+     *
+     * @param item the task to be executed.
+     * @return a CompletableFuture which gets completed when the task finishes. It
+     *         can be waited on, or used to compose further actions.
+     * @throws RejectedExecutionException if the executor has been shut down.
+     */
+    @Override
+    public CompletableFuture<Void> submit(OrderedRunnable item) {
+        Objects.requireNonNull(item, "The task cannot be null");
+        Object orderingKey = Objects.requireNonNull(item.getOrderingKey(),
+                "The ordering key for the task cannot be null");
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+        OrderedFutureRunnable<Void> future = new OrderedFutureRunnable<>(item);
+        while (true) {
+            Mailbox mailbox = mailboxes.get(orderingKey);
+            if (mailbox == null) {
+                Mailbox created = new Mailbox(orderingKey);
+                mailbox = mailboxes.putIfAbsent(orderingKey, created);
+                if (mailbox == null) {
+                    mailbox = created;
+                }
+            }
+            int previousCount = mailbox.reserve();
+            if (previousCount < 0) {
+                // The mailbox got retired, and is about to be removed from the map.
+                Thread.yield();
+                continue;
+            }
+            queuedTaskCount.increment();
+            mailbox.tasks.offer(future);
+            if (previousCount == 0) {
+                try {
+                    executor.execute(mailbox);
+                } catch (RejectedExecutionException ree) {
+                    mailbox.reject();
+                    throw ree;
+                }
+            }
+            return future;
+        }
+    }
+
+    /**
+     * Returns the count of tasks queued, due to tasks with the same ordering keys
+     * being executed.
+     *
+     * @return the count of queued tasks.
+     */
+    @Override
+    public int getQueuedTaskCount() {
+        return queuedTaskCount.intValue();
+    }
+
+    /**
+     * Returns the count of tasks being executed at the moment.
+     *
+     * @return the count of tasks being executed.
+     */
+    public int getExecutingTaskCount() {
+        return mailboxes.size();
+    }
+
+    /**
+     * Returns the pool size.
+     *
+     * @return the pool size.
+     */
+    public int getPoolSize() {
+        return executor.getPoolSize();
+    }
+
+    /**
+     * Shuts down the executor. The tasks waiting in the mailboxes will be rejected.
+     */
+    @Override
+    public void shutDown() {
+        executor.shutdown();
+    }
+
+    /**
+     * The mailbox of an ordering key.
+     *
+     * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+     *
+     */
+    private class Mailbox implements Runnable {
+
+        /**
+         * The ordering key shared by the tasks in this mailbox.
+         */
+        private final Object key;
+
+        /**
+         * The tasks yet to be executed, in the order of submission.
+         */
+        private final Queue<OrderedFutureRunnable<Void>> tasks = new ConcurrentLinkedQueue<>();
+
+        /**
+         * The count of tasks which are submitted and not yet finished. A negative
+         * value means the mailbox has been retired, and cannot take any more tasks.
+         */
+        private final AtomicInteger count = new AtomicInteger();
+
+        Mailbox(Object key) {
+            this.key = key;
+        }
+
+        /**
+         * Reserves a slot for a task in the mailbox.
+         *
+         * @return the count of unfinished tasks before the reservation, which is zero
+         *         if the mailbox was idle. A negative value means the mailbox has
+         *         been retired and nothing got reserved.
+         */
+        int reserve() {
+            while (true) {
+                int current = count.get();
+                if (current < 0 || count.compareAndSet(current, current + 1)) {
+                    return current;
+                }
+            }
+        }
+
+        /**
+         * Marks the task at the head as finished.
+         *
+         * @return true if there are more tasks to be executed, false if the mailbox
+         *         became idle. An idle mailbox is retired, unless a producer has
+         *         already reserved a slot, in which case that producer hands it over
+         *         to the pool.
+         */
+        boolean finish() {
+            if (count.decrementAndGet() > 0) {
+                return true;
+            }
+            if (count.compareAndSet(0, -1)) {
+                mailboxes.remove(key, this);
+            }
+            return false;
+        }
+
+        /**
+         * Takes the task at the head. A producer reserves its slot before appending
+         * the task, and hence the task can lag behind the count for a short while.
+         *
+         * @return the task at the head.
+         */
+        OrderedFutureRunnable<Void> take() {
+            OrderedFutureRunnable<Void> task;
+            while ((task = tasks.poll()) == null) {
+                Thread.yield();
+            }
+            queuedTaskCount.decrement();
+            return task;
+        }
+
+        /**
+         * Completes the futures of all the tasks in the mailbox with a rejection,
+         * until it becomes idle. Must be called only by the thread which owns the mailbox.
+         */
+        void reject() {
+            do {
+                take().reject();
+            } while (finish());
+        }
+
+        @Override
+        public void run() {
+            if (executor.isShutdown()) {
+                reject();
+                return;
+            }
+            // Completes the future with the outcome, and never throws.
+            take().run();
+            if (finish()) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException ree) {
+                    reject();
+                }
+            }
+        }
+
+    }
+
+}
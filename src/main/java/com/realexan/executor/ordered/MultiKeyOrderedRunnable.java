@@ -0,0 +1,34 @@
+package com.realexan.executor.ordered;
+
+import java.util.Set;
+
+/**
+ *
+ * An <code>OrderedRunnable</code> which is ordered with respect to several
+ * ordering keys at once, like a transfer between two accounts. In an
+ * <code>OrderedExecutor</code>, such a task runs only after all the tasks
+ * submitted before it, on any of its keys, have finished, and the tasks
+ * submitted after it, on any of its keys, wait for it to finish. Tasks on the
+ * other keys keep running in parallel.
+ * <p>
+ * The ordering key of such a task, as used in logs, defaults to the set of its
+ * keys.
+ *
+ * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+ */
+public interface MultiKeyOrderedRunnable extends OrderedRunnable {
+
+    /**
+     * The keys with respect to which this task is ordered. The set must not be
+     * empty, nor contain null.
+     *
+     * @return the ordering keys for this task.
+     */
+    Set<?> getOrderingKeys();
+
+    @Override
+    default Object getOrderingKey() {
+        return getOrderingKeys();
+    }
+
+}
@@ -0,0 +1,26 @@
+package com.realexan.executor.ordered;
+
+import java.util.concurrent.Callable;
+
+/**
+ * 
+ * A <code>Callable</code> that can be used in <code>OrderedExecutor</code>, for
+ * the tasks which return a result. It is ordered along with the
+ * <code>OrderedRunnable</code> instances having the same ordering key.
+ * 
+ * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+ *
+ * @param <V> the type of the result.
+ */
+public interface OrderedCallable<V> extends Callable<V> {
+
+    /**
+     * The key that is used to group and order tasks. The tasks that share the same
+     * ordering key will be executed in series, in the order that they were
+     * submitted into the <code>OrderedExecutor</code> than in parallel.
+     * 
+     * @return the ordering key for this task.
+     */
+    Object getOrderingKey();
+
+}
@@ -1,5 +1,12 @@
 package com.realexan.executor.ordered;
 
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -9,14 +16,34 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.realexan.thread.NamedThreadFactory;
 
@@ -34,58 +61,377 @@ import com.realexan.thread.NamedThreadFactory;
  * PR: https://github.com/igniterealtime/Openfire/pull/1618<br>
  * Discourse:
  * https://discourse.igniterealtime.org/t/pub-sub-message-ordering-issue-with-openfire4-4-4/87536<br>
+ * <p>
+ * With a bounded count of workers, the ordering keys which are ready to run
+ * wait for a free worker in a ready queue, which is ordered by the priority of
+ * the tasks at their heads (see <code>PrioritizedOrderedRunnable</code>), and
+ * then by the order in which they became ready. Optionally, the keys can be
+ * aged, so that the low priority keys don't starve behind a steady stream of
+ * high priority ones.
+ * <p>
+ * The ordering keys can also be grouped, say by tenant, in which case the
+ * workers are shared among the groups in proportion to their weights, using
+ * deficit round robin on the worker time taken by each group. Thus a group gets
+ * its share irrespective of the count of its keys which are ready to run.
+ * <p>
+ * A task can be ordered with respect to several keys at once (see
+ * <code>MultiKeyOrderedRunnable</code>). It is queued in the lanes of all its
+ * keys, under the locks of their stripes taken in the order of the stripes, so
+ * that any two such tasks sharing keys are queued in the same order in all the
+ * lanes they share, which rules out deadlocks. Each lane stops at the task,
+ * holding up the later tasks of its key, and the last lane to reach it runs it
+ * and lets the others go.
+ * <p>
+ * Tasks with hierarchical keys (see <code>HierarchicalKey</code>) are handled
+ * the same way. The keys of a hierarchy share the stripe of their root, which
+ * indexes the lanes of the descendants of each key, and the latest unfinished
+ * task of each key. A task of a key is queued in its lane and in the lanes of
+ * its descendants, and a new lane of a descendant is queued behind the
+ * unfinished tasks of its ancestors.
+ * <p>
+ * Tasks can be scheduled to run after a delay, or periodically, with the same
+ * per key ordering. A scheduled task joins the lane of its key only when it
+ * becomes due, and is thus executed after the tasks of the key submitted before
+ * it became due, and before those submitted after. The delays are kept by a
+ * timing wheel shared by all the executors, which uses a single thread.
+ * <p>
+ * The elements of a stream can be processed with the same per key ordering
+ * (see <code>forEachOrdered</code>), with the stream pulled as the elements get
+ * processed, so that only a bounded count of them is held at a time.
  * 
  * 
  * 
  * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
  */
-public class OrderedExecutor {
+public class OrderedExecutor implements OrderedExecutorService {
+    /**
+     * The logger instance.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(OrderedExecutor.class);
+
     /**
      * The instances of OrderedExecutor that are created.
      */
     private static final List<OrderedExecutor> instances = new LinkedList<>();
 
     /**
-     * Lock to guard the ordering logic.
+     * The default count of stripes, which makes all the ordering keys share a
+     * single lock.
+     */
+    private static final int DEFAULT_STRIPE_COUNT = 1;
+
+    /**
+     * The maximum worker count which denotes an unbounded pool, where every
+     * ordering key that is ready to run gets a worker thread right away.
+     */
+    public static final int UNBOUNDED_WORKER_COUNT = Integer.MAX_VALUE;
+
+    /**
+     * The default maximum count of elements of a stream, submitted and yet to be
+     * processed, in <code>forEachOrdered</code>.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+
+    /**
+     * The time for which an idle worker thread is kept alive, in seconds.
+     */
+    private static final long WORKER_KEEPALIVE_TIME = 60L;
+
+    /**
+     * The interval at which a blocked producer rechecks the queue capacity, as a
+     * task finishing in another stripe doesn't wake it up.
+     */
+    private static final long CAPACITY_RECHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * The priority aging interval which denotes no aging.
+     */
+    private static final long NO_PRIORITY_AGING = Long.MAX_VALUE;
+
+    /**
+     * The worker time given to a group of weight one, on its turn in the ready
+     * queue, in nanoseconds.
+     */
+    private static final long FAIR_SHARE_QUANTUM_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * The group of the ordering keys, when no group extractor is set, or the
+     * extractor doesn't give a group for a key.
+     */
+    private static final Object DEFAULT_GROUP = new Object();
+
+    /**
+     * The default weight of a group.
+     */
+    private static final int DEFAULT_GROUP_WEIGHT = 1;
+
+    /**
+     * The stripes, to which the ordering keys are hashed. Each stripe guards the
+     * ordering logic of its keys with its own lock.
      */
-    private final Object lock = new Object();
+    private final Stripe[] stripes;
 
     /**
-     * The set of keys that are corresponding to the tasks being executed at any
-     * point of time.
+     * The pool of workers, which is either a ThreadPoolExecutor of this executor's
+     * own, or an Executor shared with other executors.
      */
-    private final Set<Object> executingItemKeys = new HashSet<>();
+    private final Executor executor;
 
     /**
-     * The Map of keys to the count of queued items.
+     * Whether the pool of workers belongs to this executor, and is to be shut down
+     * along with it.
      */
-    private final Map<Object, Integer> queuedItemKeys = new HashMap<>();
+    private final boolean ownsExecutor;
 
     /**
-     * The queue which holds the items that are yet to be submitted for execution.
+     * Whether this executor has been shut down.
      */
-    private final Queue<OrderedFutureRunnable> localQueue = new LinkedList<>();
+    private volatile boolean shutDown;
 
     /**
-     * The actual ThreadPoolExecutor.
+     * The queue of the lanes which are ready to run, and are waiting for a free
+     * worker, with a bounded pool. It is guarded by its own lock. Null with an
+     * unbounded pool, where the lanes are handed over to the pool directly.
      */
-    private final ThreadPoolExecutor executor;
+    private final DeficitRoundRobinQueue<Lane> readyQueue;
+
+    /**
+     * The runnable handed over to a bounded pool for every ready lane, which runs
+     * the lane that is next in the ready queue.
+     */
+    private final Runnable readyLaneRunner = this::runReadyLane;
+
+    /**
+     * The function which maps an ordering key to its group, if set.
+     */
+    private volatile Function<Object, ?> groupExtractor;
+
+    /**
+     * The clock by which the worker time taken by the groups is measured, in
+     * nanoseconds.
+     */
+    private volatile LongSupplier workerClock = System::nanoTime;
+
+    /**
+     * The weights of the groups, which are not of the default weight.
+     */
+    private final ConcurrentMap<Object, Integer> groupWeights = new ConcurrentHashMap<>();
+
     /**
      * Name of this instance.
      */
     private final String name;
 
+    /**
+     * The maximum count of tasks of a key, that a worker executes in a go.
+     */
+    private volatile int drainQuantumTasks = 1;
+
+    /**
+     * The maximum time for which a worker keeps executing tasks of a key, in
+     * nanoseconds.
+     */
+    private volatile long drainQuantumNanos = Long.MAX_VALUE;
+
+    /**
+     * The maximum count of tasks that can be queued for an ordering key.
+     */
+    private volatile int maxQueuedPerKey = Integer.MAX_VALUE;
+
+    /**
+     * The maximum count of tasks that can be queued altogether.
+     */
+    private volatile int maxQueued = Integer.MAX_VALUE;
+
+    /**
+     * The policy applied when the queue capacity is reached.
+     */
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.REJECT;
+
+    /**
+     * The maximum time for which the producer is blocked, in nanoseconds.
+     */
+    private volatile long blockTimeoutNanos = Long.MAX_VALUE;
+
+    /**
+     * The count of times each overflow policy got applied, indexed by the ordinal.
+     */
+    private final LongAdder[] overflowCounts = new LongAdder[OverflowPolicy.values().length];
+
+    /**
+     * The count of coalescing tasks which got superseded while queued.
+     */
+    private final LongAdder supersededTaskCount = new LongAdder();
+
+    /**
+     * The count of expiring tasks which got skipped, as their turn came after
+     * their deadlines.
+     */
+    private final LongAdder expiredTaskCount = new LongAdder();
+
+    /**
+     * The time for which a ready key has to wait, to gain a priority level, in
+     * nanoseconds.
+     */
+    private volatile long priorityAgingNanos = NO_PRIORITY_AGING;
+
+    /**
+     * The sequence of the keys becoming ready, which orders the keys of the same
+     * rank in the ready queue.
+     */
+    private final AtomicLong readySequence = new AtomicLong();
+
+    /**
+     * The controller resizing the pool of workers, if set.
+     */
+    private final AtomicReference<WorkerCountController> workerCountController = new AtomicReference<>();
+
+    /**
+     * The journal of the unfinished tasks, if set.
+     */
+    private volatile TaskJournal journal;
+
+    /**
+     * The scheduled tasks, which are yet to become due.
+     */
+    private final Set<ScheduledDispatch> scheduledDispatches = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The scheduled tasks which became due, in the order they did, waiting to be
+     * queued in the lanes of their keys, off the timer thread.
+     */
+    private final Queue<ScheduledDispatch> dueDispatches = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Whether a drain of the due tasks is handed over, or running.
+     */
+    private final AtomicBoolean drainingDueDispatches = new AtomicBoolean();
+
+    /**
+     * The metrics of this executor.
+     */
+    private final OrderedExecutorMetrics metrics = new OrderedExecutorMetrics(this);
+
+    /**
+     * The name with which the metrics are registered as an MBean, if registered.
+     */
+    private volatile ObjectName mbeanName;
+
+    /**
+     * The handler of the exceptions thrown by the tasks which don't have a future.
+     */
+    private volatile BiConsumer<OrderedRunnable, Throwable> exceptionHandler = (task, t) -> logger
+            .error("Exception while executing task with ordering key " + task.getOrderingKey(), t);
+
+    /**
+     * The handler to which the expired tasks are reported.
+     */
+    private volatile Consumer<OrderedRunnable> expiryHandler = task -> logger
+            .debug("Skipped expired task with ordering key " + task.getOrderingKey());
+
     /**
      * Constructor.
      */
     public OrderedExecutor(String name) {
+        this(name, DEFAULT_STRIPE_COUNT);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param name        the name of the executor.
+     * @param stripeCount the count of stripes, to which the ordering keys are
+     *                    hashed. Submits and completions of tasks, whose keys
+     *                    belong to different stripes, don't contend for the same
+     *                    lock.
+     */
+    public OrderedExecutor(String name, int stripeCount) {
+        this(name, stripeCount, UNBOUNDED_WORKER_COUNT);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param name           the name of the executor.
+     * @param stripeCount    the count of stripes, to which the ordering keys are
+     *                       hashed. Submits and completions of tasks, whose keys
+     *                       belong to different stripes, don't contend for the
+     *                       same lock.
+     * @param maxWorkerCount the maximum count of worker threads. When all the
+     *                       workers are busy, the ordering keys which are ready to
+     *                       run wait in a ready queue, in the order of their
+     *                       priorities, until a worker is free. Use
+     *                       <code>UNBOUNDED_WORKER_COUNT</code> for a worker per
+     *                       ready key.
+     */
+    public OrderedExecutor(String name, int stripeCount, int maxWorkerCount) {
+        if (maxWorkerCount <= 0) {
+            throw new IllegalArgumentException("Invalid maximum worker count " + maxWorkerCount);
+        }
         this.name = name + "OrderedExecutor";
+        this.stripes = newStripes(stripeCount);
+        this.ownsExecutor = true;
         final ThreadFactory threadFactory = new NamedThreadFactory(this.name + "-pool-");
-        executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
-                threadFactory);
+        if (maxWorkerCount == UNBOUNDED_WORKER_COUNT) {
+            readyQueue = null;
+            executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, WORKER_KEEPALIVE_TIME, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), threadFactory);
+        } else {
+            // A lane is queued only when its key is ready to run, and only once at a
+            // time. The work queue of the pool holds a runner per queued lane, which
+            // picks the lane that is next in the ready queue.
+            readyQueue = new DeficitRoundRobinQueue<>(
+                    group -> groupWeights.getOrDefault(group, DEFAULT_GROUP_WEIGHT), FAIR_SHARE_QUANTUM_NANOS);
+            executor = new ThreadPoolExecutor(maxWorkerCount, maxWorkerCount, WORKER_KEEPALIVE_TIME, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), threadFactory);
+            ((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+        }
+        instanceCreated(this);
+    }
+
+    /**
+     * Constructor, for an executor which runs its tasks on a pool of workers shared
+     * with other executors. Each executor keeps its own ordering keys, queues,
+     * ready queue and metrics, and hands a runner per ready key over to the shared
+     * pool, where the runners of all the executors take turns. Shutting down this
+     * executor doesn't shut down the shared pool.
+     * 
+     * @param name        the name of the executor.
+     * @param stripeCount the count of stripes, to which the ordering keys are
+     *                    hashed.
+     * @param workers     the shared pool of workers.
+     */
+    public OrderedExecutor(String name, int stripeCount, Executor workers) {
+        Objects.requireNonNull(workers, "The pool of workers cannot be null");
+        this.name = name + "OrderedExecutor";
+        this.stripes = newStripes(stripeCount);
+        this.ownsExecutor = false;
+        this.executor = workers;
+        readyQueue = new DeficitRoundRobinQueue<>(group -> groupWeights.getOrDefault(group, DEFAULT_GROUP_WEIGHT),
+                FAIR_SHARE_QUANTUM_NANOS);
         instanceCreated(this);
     }
 
+    /**
+     * Creates the stripes, and the counters of the overflow policies.
+     * 
+     * @param stripeCount the count of stripes.
+     * @return the stripes.
+     */
+    private Stripe[] newStripes(int stripeCount) {
+        if (stripeCount <= 0) {
+            throw new IllegalArgumentException("Invalid stripe count " + stripeCount);
+        }
+        for (int i = 0; i < overflowCounts.length; ++i) {
+            overflowCounts[i] = new LongAdder();
+        }
+        Stripe[] newStripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; ++i) {
+            newStripes[i] = new Stripe();
+        }
+        return newStripes;
+    }
+
     /**
      * Adds the OrderedExecutor instance passed into the list of instances of
      * OrderedExecutor. It is used to shutdown the executors later.
@@ -115,203 +461,2742 @@ public class OrderedExecutor {
      * queued, after the tasks with same ordering key, which are running finishes.
      * 
      * @param item the task to be executed.
-     * @return a Future that can be used for knowing when the task is gets
-     *         completed.
+     * @return a CompletableFuture which gets completed when the task finishes. It
+     *         can be waited on, or used to compose further actions.
+     * @throws RejectedExecutionException if the executor has been shut down, or
+     *                                    the queue capacity is reached and the
+     *                                    overflow policy rejected the task.
+     * @see #setQueueCapacity(int, int)
+     */
+    @Override
+    public CompletableFuture<Void> submit(OrderedRunnable item) {
+        OrderedFutureRunnable<Void> future = newFuture(item, metrics.isEnabled());
+        dispatchJournaled(future);
+        return future;
+    }
+
+    /**
+     * Submits an <code>OrderedCallable</code> to be executed. The ordering is the
+     * same as that of <code>submit(OrderedRunnable)</code>, and the tasks of both
+     * kinds with the same ordering key are executed in series.
+     * 
+     * @param <V>  the type of the result.
+     * @param item the task to be executed.
+     * @return a CompletableFuture which gets completed with the result of the
+     *         task, or the exception it threw.
+     * @throws RejectedExecutionException if the executor has been shut down, or
+     *                                    the queue capacity is reached and the
+     *                                    overflow policy rejected the task.
+     * @see #setQueueCapacity(int, int)
+     */
+    public <V> CompletableFuture<V> submit(OrderedCallable<V> item) {
+        OrderedFutureRunnable<V> future = newFuture(item, metrics.isEnabled());
+        dispatchJournaled(future);
+        return future;
+    }
+
+    /**
+     * Executes an <code>OrderedRunnable</code>, without creating a
+     * <code>Future</code> for it.
+     * <p>
+     * The ordering is the same as that of <code>submit</code>. As there is no
+     * future to report the outcome, any exception thrown by the task is passed to
+     * the exception handler, and so are the tasks which are rejected, as the
+     * executor got shut down while they were queued.
+     * 
+     * @param item the task to be executed.
+     * @throws RejectedExecutionException if the executor has been shut down, or
+     *                                    the queue capacity is reached and the
+     *                                    overflow policy rejected the task.
+     * @see #setExceptionHandler(BiConsumer)
+     */
+    public void execute(OrderedRunnable item) {
+        Objects.requireNonNull(item, "The task cannot be null");
+        Objects.requireNonNull(item.getOrderingKey(), "The ordering key for the task cannot be null");
+        dispatch(metrics.isEnabled() ? new TimedRunnable(item) : item);
+    }
+
+    /**
+     * Schedules an <code>OrderedRunnable</code> to be executed after the delay.
+     * <p>
+     * The task joins the lane of its ordering key only when it becomes due. Thus
+     * it is executed after the tasks with the same ordering key which were
+     * submitted before it became due, and before those submitted after, but the
+     * order among tasks submitted while it is waiting is not affected. Scheduled
+     * tasks of the same key which become due in the same tick of the timer join
+     * the lane in the order they were scheduled. When it becomes due, the task is
+     * queued off the timer thread, which is shared by all the executors, and
+     * irrespective of the queue capacity, as it can neither block nor run it.
+     * 
+     * @param item  the task to be executed.
+     * @param delay the delay after which the task becomes due.
+     * @param unit  the unit of the delay.
+     * @return a CompletableFuture which gets completed when the task finishes.
+     *         Cancelling it before the task becomes due removes it from the timer.
+     * @throws RejectedExecutionException if the executor has been shut down.
+     */
+    public CompletableFuture<Void> schedule(OrderedRunnable item, long delay, TimeUnit unit) {
+        OrderedFutureRunnable<Void> future = newFuture(item, false);
+        new ScheduledDispatch(future).schedule(unit.toNanos(delay));
+        return future;
+    }
+
+    /**
+     * Schedules an <code>OrderedRunnable</code> to be executed periodically, first
+     * after the initial delay, and then at the given period. Each execution joins
+     * the lane of the ordering key when it becomes due, as with
+     * <code>schedule</code>.
+     * <p>
+     * The next execution becomes due only after the current one finishes. If an
+     * execution takes longer than the period, or waits behind other tasks of the
+     * key, the subsequent executions start late, but never run concurrently, nor
+     * pile up in the lane.
+     * 
+     * @param item         the task to be executed.
+     * @param initialDelay the delay after which the first execution becomes due.
+     * @param period       the period between the executions becoming due.
+     * @param unit         the unit of the delays.
+     * @return a CompletableFuture which never completes normally. Cancelling it
+     *         stops the executions. It is completed exceptionally with the
+     *         exception thrown by an execution, which stops further executions,
+     *         or with a <code>RejectedExecutionException</code> if the executor
+     *         gets shut down.
      * @throws RejectedExecutionException if the executor has been shut down.
+     * @throws IllegalArgumentException   if the period is not positive.
      */
-    public Future<?> submit(OrderedRunnable item) {
+    public CompletableFuture<Void> scheduleAtFixedRate(OrderedRunnable item, long initialDelay, long period,
+            TimeUnit unit) {
         Objects.requireNonNull(item, "The task cannot be null");
         Objects.requireNonNull(item.getOrderingKey(), "The ordering key for the task cannot be null");
-        OrderedFutureRunnable future = new OrderedFutureRunnable(item);
-        synchronized (lock) {
-            if (checkShutdown()) {
-                throw new RejectedExecutionException("Executor has been shut down");
-            }
-            Object orderingKey = item.getOrderingKey();
-            // If another task with the same key is being executed,
-            // queue this item and return.
-            if (executingItemKeys.contains(orderingKey)) {
-                localQueue.add(future);
-                incrementQueuedCount(orderingKey);
-                return future;
-            }
-            executingItemKeys.add(item.getOrderingKey());
+        if (period <= 0) {
+            throw new IllegalArgumentException("Invalid period " + period);
         }
-        future.setFuture(executor.submit(new ExecutorRunnable(future)));
-        return future;
+        PeriodicSchedule schedule = new PeriodicSchedule(item, unit.toNanos(period));
+        schedule.next(System.nanoTime() + unit.toNanos(initialDelay));
+        return schedule.handle;
     }
 
     /**
-     * Removes the ordering key from the current set of executing task keys, and
-     * examines the queue for the next candidate to be taken for execution. If one
-     * found, that task is submitted to the ExecutorService.
+     * Queues the task in the lane of its key, applying the overflow policy if the
+     * queue capacity is reached. If the key was idle, its new lane is handed over
+     * to the pool, or run in the caller thread, as per the overflow policy.
      * 
-     * @param finishedItemOrderingKey
+     * @param task the task to be queued.
+     * @throws RejectedExecutionException if the executor has been shut down, or
+     *                                    the task is rejected by the overflow
+     *                                    policy.
      */
-    private void dispatchNext(Object finishedItemOrderingKey) {
-        OrderedFutureRunnable nextItemToSubmit = null;
-        synchronized (lock) {
-            executingItemKeys.remove(finishedItemOrderingKey);
-            // If executor is shut down, set a future which throws
-            // an exception on get() calls, for all pending tasks, and leave.
-            if (checkShutdown()) {
-                return;
-            }
-            // Only if this task caused another task to get queued, try
-            // fetching the next task to execute. Otherwise, all threads will be
-            // trying to identify and submit the next task, wasting CPU cycles.
-            if (!queuedItemKeys.containsKey(finishedItemOrderingKey)) {
-                return;
-            }
-            Iterator<OrderedFutureRunnable> ite = localQueue.iterator();
-            while (ite.hasNext()) {
-                OrderedFutureRunnable nextRunnable = ite.next();
-                Object nextItemOrderingKey = nextRunnable.getOrderingKey();
-                if (!executingItemKeys.contains(nextItemOrderingKey)) {
-                    ite.remove();
-                    executingItemKeys.add(nextItemOrderingKey);
-                    nextItemToSubmit = nextRunnable;
-                    // Now that new task is taken up for execution,
-                    // reduced the queued count of its key.
-                    decrementQueuedCount(nextItemOrderingKey);
-                    break;
-                }
-            }
+    private void dispatch(OrderedRunnable task) {
+        dispatch(task, true, null);
+    }
+
+    /**
+     * Queues the task in the lane of its key.
+     * 
+     * @param task    the task to be queued.
+     * @param bounded   true if the queue capacity and the overflow policy apply.
+     *                  Otherwise the task is queued irrespective of the capacity,
+     *                  and a new lane is always handed over to the pool.
+     * @param journaled the pending append of the task to the journal, done as it
+     *                  is queued, or null.
+     * @throws RejectedExecutionException if the executor has been shut down, or
+     *                                    the task is rejected by the overflow
+     *                                    policy.
+     */
+    private void dispatch(OrderedRunnable task, boolean bounded, JournalAppend journaled) {
+        Object actualTask = actualTaskOf(task);
+        if (actualTask instanceof MultiKeyOrderedRunnable) {
+            dispatchMultiKey(task, ((MultiKeyOrderedRunnable) actualTask).getOrderingKeys(), bounded, journaled);
+            return;
         }
-        if (nextItemToSubmit != null) {
+        Stripe stripe = stripeOf(task.getOrderingKey());
+        Lane lane;
+        boolean callerRuns;
+        synchronized (stripe) {
             try {
-                nextItemToSubmit.setFuture(executor.submit(new ExecutorRunnable(nextItemToSubmit)));
+                if (stripe.checkShutdown()) {
+                    throw new RejectedExecutionException("Executor has been shut down");
+                }
+                callerRuns = bounded && makeRoom(stripe, task, true, null);
             } catch (RejectedExecutionException ree) {
-                nextItemToSubmit.setFuture(executionRejectionFuture);
+                tasksRejected(1);
+                throw ree;
+            }
+            if (journaled != null) {
+                journaled.append();
+            }
+            lane = stripe.enqueue(task);
+        }
+        if (lane != null) {
+            if (callerRuns) {
+                lane.run();
+            } else {
+                handOver(lane);
             }
         }
     }
 
-    private void incrementQueuedCount(Object orderingKey) {
-        queuedItemKeys.compute(orderingKey, (k, v) -> (v == null) ? 1 : v + 1);
+    /**
+     * Queues a task, which is ordered with respect to several keys, in the lanes
+     * of all its keys. The locks of the stripes of the keys are taken in the order
+     * of the stripes, and held till the task is in all the lanes. If the queue
+     * capacity of any of the keys is reached, the task is rejected, whatever be
+     * the overflow policy, as it can neither block nor run in the caller while
+     * holding several locks.
+     * 
+     * @param task      the task to be queued.
+     * @param keys      the ordering keys of the task.
+     * @param bounded   true if the queue capacity applies.
+     * @param journaled the pending append of the task to the journal, done as it
+     *                  is queued, or null.
+     * @throws RejectedExecutionException if the executor has been shut down, or
+     *                                    the queue capacity is reached.
+     */
+    private void dispatchMultiKey(OrderedRunnable task, Set<?> keys, boolean bounded, JournalAppend journaled) {
+        Objects.requireNonNull(keys, "The ordering keys for the task cannot be null");
+        Object[] orderingKeys = keys.toArray();
+        if (orderingKeys.length == 0) {
+            throw new IllegalArgumentException("The ordering keys for the task cannot be empty");
+        }
+        int[] stripeIndices = new int[orderingKeys.length];
+        for (int i = 0; i < orderingKeys.length; ++i) {
+            Object orderingKey = Objects.requireNonNull(orderingKeys[i], "An ordering key cannot be null");
+            if (orderingKey instanceof HierarchicalKey) {
+                throw new IllegalArgumentException("A multi key task cannot have hierarchical keys");
+            }
+            stripeIndices[i] = stripeIndexOf(orderingKey);
+        }
+        int[] lockOrder = Arrays.stream(stripeIndices).sorted().distinct().toArray();
+        MultiKeyBarrier barrier = new MultiKeyBarrier(task, null, 0);
+        List<Lane> newLanes = new ArrayList<>();
+        lockAndRun(lockOrder, 0, () -> {
+            try {
+                for (int index : lockOrder) {
+                    if (stripes[index].checkShutdown()) {
+                        throw new RejectedExecutionException("Executor has been shut down");
+                    }
+                }
+                if (bounded) {
+                    for (int i = 0; i < orderingKeys.length; ++i) {
+                        if (isFull(stripes[stripeIndices[i]].lanes.get(orderingKeys[i]))) {
+                            overflowCounts[OverflowPolicy.REJECT.ordinal()].increment();
+                            throw new RejectedExecutionException("Queue capacity reached");
+                        }
+                    }
+                }
+            } catch (RejectedExecutionException ree) {
+                tasksRejected(1);
+                throw ree;
+            }
+            if (metrics.isEnabled()) {
+                metrics.taskSubmitted();
+            }
+            if (journaled != null) {
+                journaled.append();
+            }
+            for (int i = 0; i < orderingKeys.length; ++i) {
+                stripes[stripeIndices[i]].enqueue(orderingKeys[i], barrier, newLanes);
+            }
+        });
+        handOver(newLanes);
     }
 
-    private void decrementQueuedCount(Object orderingKey) {
-        Integer newValue = queuedItemKeys.computeIfPresent(orderingKey, (k, v) -> v - 1);
-        if (newValue != null && newValue <= 0) {
-            queuedItemKeys.remove(orderingKey);
+    /**
+     * Runs the action holding the locks of the stripes, taken in the given order.
+     * 
+     * @param lockOrder the indices of the stripes, in the order of locking.
+     * @param from      the position in <code>lockOrder</code> to lock from.
+     * @param action    the action to be run.
+     */
+    private void lockAndRun(int[] lockOrder, int from, Runnable action) {
+        if (from == lockOrder.length) {
+            action.run();
+            return;
+        }
+        synchronized (stripes[lockOrder[from]]) {
+            lockAndRun(lockOrder, from + 1, action);
         }
     }
 
     /**
-     * Returns the count of tasks queued, due to tasks with the same ordering keys
-     * being executed.
+     * Sets the journal, to which the tasks passed to <code>submit</code> and
+     * <code>submitAll</code>, which are <code>Serializable</code>, are appended
+     * as they are queued, so that they can be replayed after a crash. They are
+     * serialized beforehand, and appended holding the lock of the stripe of the
+     * key, so that the records of a key are in the order its tasks run. A task
+     * rejected by the submit call is never appended. The record of a task is
+     * marked once it finishes, fails, or gets cancelled, superseded or rejected,
+     * except that the tasks rejected while queued, as the executor gets shut
+     * down, are left in the journal, to be replayed. The journal is not closed by
+     * this executor.
      * 
-     * @return the count of queued tasks.
+     * @param journal the journal, or null to stop journaling.
+     * @see #replayJournal()
      */
-    public int getQueuedTaskCount() {
-        return localQueue.size();
+    public void setJournal(TaskJournal journal) {
+        this.journal = journal;
     }
 
     /**
-     * Returns the count of tasks being executed at the moment.
+     * Submits the unfinished tasks found in the journal when it was opened, in the
+     * order they were submitted originally, and thus in the order of their keys.
+     * The tasks keep their records in the journal. Must be called before any new
+     * tasks are submitted, for them to be ordered after the replayed ones.
      * 
-     * @return the count of tasks being executed.
+     * @return the futures of the replayed tasks.
+     * @throws IllegalStateException      if no journal is set.
+     * @throws RejectedExecutionException if the executor has been shut down, or
+     *                                    the queue capacity is reached and the
+     *                                    overflow policy rejected a task. The
+     *                                    tasks not replayed are left in the
+     *                                    journal.
      */
-    public int getExecutingTaskCount() {
-        return executingItemKeys.size();
+    public List<CompletableFuture<?>> replayJournal() {
+        TaskJournal j = journal;
+        if (j == null) {
+            throw new IllegalStateException("No journal is set");
+        }
+        List<TaskJournal.Entry> entries = j.takeRecovered();
+        List<CompletableFuture<?>> futures = new ArrayList<>(entries.size());
+        boolean timed = metrics.isEnabled();
+        for (TaskJournal.Entry entry : entries) {
+            Object task = entry.getTask();
+            OrderedFutureRunnable<?> future;
+            if (task instanceof OrderedCallable) {
+                future = newFuture((OrderedCallable<?>) task, timed);
+            } else if (task instanceof OrderedRunnable) {
+                future = newFuture((OrderedRunnable) task, timed);
+            } else {
+                logger.error("Dropping the journaled task, which is not an ordered task: " + task);
+                entry.complete();
+                continue;
+            }
+            futures.add(future);
+            dispatch(future, entry);
+        }
+        return futures;
     }
 
     /**
-     * Returns the pool size.
+     * Queues the task, appending it to the journal, if any, as it is queued. The
+     * task is serialized without holding any lock of this executor.
      * 
-     * @return
+     * @param future the future of the task.
+     * @throws RejectedExecutionException if the executor has been shut down, or
+     *                                    the task is rejected by the overflow
+     *                                    policy.
      */
-    public int getPoolSize() {
-        return executor.getPoolSize();
+    private void dispatchJournaled(OrderedFutureRunnable<?> future) {
+        dispatch(future, true, journalAppendOf(future));
     }
 
     /**
-     * If executor is shutdown, this will set the rejection future (so that the
-     * actual OrderedFutureRunnable.get() will not get blocked) to the waiting
-     * tasks, and clear the queue.
+     * Returns the pending append of the task to the journal, if it is to be
+     * journaled.
      * 
-     * @return true if executor is shut down, false otherwise.
+     * @param future the future of the task.
+     * @return the pending append, or null if the task is not to be journaled.
      */
-    private synchronized boolean checkShutdown() {
-        if (executor.isShutdown()) {
-            localQueue.forEach(oe -> {
-                oe.setFuture(executionRejectionFuture);
-            });
-            localQueue.clear();
-            return true;
+    private JournalAppend journalAppendOf(OrderedFutureRunnable<?> future) {
+        TaskJournal j = journal;
+        Object task = future.getTask();
+        if (j == null || !(task instanceof Serializable)) {
+            return null;
         }
-        return false;
+        return new JournalAppend(j, j.serialize((Serializable) task), future);
     }
 
     /**
-     * Shuts down the executor.
+     * Marks the record of the task in the journal once it finishes, unless it
+     * gets rejected as the executor gets shut down.
+     * 
+     * @param future the future of the task.
+     * @param entry  the record of the task in the journal.
      */
-    public void shutDown() {
-        executor.shutdown();
+    private void trackJournaled(OrderedFutureRunnable<?> future, TaskJournal.Entry entry) {
+        future.whenComplete((result, t) -> {
+            if (!isShutdownRejection(t)) {
+                entry.complete();
+            }
+        });
     }
 
     /**
-     * The actual runnable, which is composed of the
-     * <code>OrderedFutureRunnable</code> submitted to the ExecutorService. This
-     * keeps track of end of execution of a task and submits the next task in the
-     * queue(if any) to the ExecutorService.
+     * Queues the journaled task, and marks its record once it finishes.
      * 
-     * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
-     *
+     * @param future the future of the task.
+     * @param entry  the record of the task in the journal.
+     * @throws RejectedExecutionException if the executor has been shut down, or
+     *                                    the task is rejected by the overflow
+     *                                    policy.
      */
-    private class ExecutorRunnable implements Runnable {
+    private void dispatch(OrderedFutureRunnable<?> future, TaskJournal.Entry entry) {
+        trackJournaled(future, entry);
+        try {
+            dispatch(future);
+        } catch (RuntimeException e) {
+            if (!isShutdownRejection(e)) {
+                entry.complete();
+            }
+            throw e;
+        }
+    }
 
-        private final OrderedFutureRunnable or;
+    /**
+     * Returns true if the task got rejected as the executor got shut down, in
+     * which case its record is left in the journal, to be replayed.
+     * 
+     * @param t the exception the task failed with, if any.
+     * @return true if it is a rejection on shutdown.
+     */
+    private boolean isShutdownRejection(Throwable t) {
+        return t instanceof RejectedExecutionException && shutDown;
+    }
 
-        ExecutorRunnable(OrderedFutureRunnable or) {
-            this.or = or;
+    /**
+     * Hands a drain of the due scheduled tasks over to the drainers shared by the
+     * executors, which take it without blocking, unless one is on already. The
+     * pool of this executor could hold it up behind a backlog, or, if it is
+     * shared, block the caller, or run it inline.
+     */
+    private void drainDueDispatchesLater() {
+        if (!drainingDueDispatches.compareAndSet(false, true)) {
+            return;
         }
-
-        @Override
-        public void run() {
-            try {
-                or.run();
-            } finally {
-                or.done();
-                dispatchNext(or.getOrderingKey());
+        try {
+            DueDispatchDrainers.INSTANCE.execute(this::drainDueDispatches);
+        } catch (RejectedExecutionException ree) {
+            drainingDueDispatches.set(false);
+            ScheduledDispatch due;
+            while ((due = dueDispatches.poll()) != null) {
+                due.future.reject(ree.getMessage());
             }
-
         }
+    }
 
+    /**
+     * Queues the due scheduled tasks in the lanes of their keys, in the order they
+     * became due.
+     */
+    private void drainDueDispatches() {
+        do {
+            ScheduledDispatch due;
+            while ((due = dueDispatches.poll()) != null) {
+                try {
+                    due.dispatchDue();
+                } catch (RuntimeException e) {
+                    logger.error("Could not queue a due task of " + name, e);
+                }
+            }
+            drainingDueDispatches.set(false);
+            // A task which became due after the last poll, and found the drain on.
+        } while (!dueDispatches.isEmpty() && drainingDueDispatches.compareAndSet(false, true));
     }
 
     /**
-     * The fake Future instance that represents the rejection of queued tasks, if
-     * the executor got shut down before the task got submitted.
+     * The threads which queue the due scheduled tasks, shared by the executors. A
+     * drain blocked by the pool of one executor gets a thread of its own, and
+     * does not hold up those of the others.
      */
-    private Future<?> executionRejectionFuture = new Future<Void>() {
+    private static class DueDispatchDrainers {
 
-        @Override
-        public boolean cancel(boolean mayInterruptIfRunning) {
-            return false;
-        }
+        private static final ThreadFactory FACTORY = new NamedThreadFactory("OrderedExecutor-due-dispatcher");
 
-        @Override
-        public boolean isCancelled() {
-            return false;
-        }
+        private static final Executor INSTANCE = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60,
+                TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+                    Thread t = FACTORY.newThread(r);
+                    t.setDaemon(true);
+                    return t;
+                });
 
-        @Override
-        public boolean isDone() {
-            return true;
-        }
+    }
 
-        @Override
-        public Void get() throws InterruptedException, ExecutionException {
-            throw new ExecutionException("Executor has been shut down", new RejectedExecutionException());
-        }
+    /**
+     * Returns the count of queued <code>CoalescingOrderedRunnable</code> tasks that
+     * got superseded by newer ones, and hence never got executed.
+     * 
+     * @return the count of superseded tasks.
+     */
+    public long getSupersededTaskCount() {
+        return supersededTaskCount.sum();
+    }
+
+    /**
+     * Returns the count of <code>ExpiringOrderedRunnable</code> tasks that got
+     * skipped, as their turn came after their deadlines.
+     * 
+     * @return the count of expired tasks.
+     */
+    public long getExpiredTaskCount() {
+        return expiredTaskCount.sum();
+    }
+
+    /**
+     * Returns the task as submitted, for a task which got wrapped by the executor.
+     * 
+     * @param task the task, its future, or its timed wrapper.
+     * @return the task as submitted, which is an <code>OrderedCallable</code> or
+     *         an <code>OrderedRunnable</code>.
+     */
+    private static Object actualTaskOf(OrderedRunnable task) {
+        if (task instanceof OrderedFutureRunnable) {
+            return ((OrderedFutureRunnable<?>) task).getTask();
+        }
+        if (task instanceof TimedRunnable) {
+            return ((TimedRunnable) task).task;
+        }
+        return task;
+    }
+
+    /**
+     * Returns the time at which the task got submitted.
+     * 
+     * @param task the task, as queued.
+     * @return the submission time, or <code>OrderedFutureRunnable.NOT_TIMED</code>
+     *         if the task is not timed.
+     */
+    private static long submitNanosOf(OrderedRunnable task) {
+        if (task instanceof OrderedFutureRunnable) {
+            return ((OrderedFutureRunnable<?>) task).getSubmitNanos();
+        }
+        if (task instanceof TimedRunnable) {
+            return ((TimedRunnable) task).submitNanos;
+        }
+        return OrderedFutureRunnable.NOT_TIMED;
+    }
+
+    /**
+     * Counts the tasks as rejected, if the metrics are enabled.
+     * 
+     * @param count the count of tasks rejected.
+     */
+    private void tasksRejected(int count) {
+        if (metrics.isEnabled()) {
+            metrics.tasksRejected(count);
+        }
+    }
+
+    /**
+     * Returns the metrics of this executor. The counts and durations are recorded
+     * only while the metrics are enabled.
+     * 
+     * @return the metrics.
+     * @see #setMetricsEnabled(boolean)
+     */
+    public OrderedExecutorMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Enables or disables the recording of the task counts, queue waits and
+     * execution times. They are disabled by default.
+     * 
+     * @param enabled true to enable the metrics.
+     */
+    public void setMetricsEnabled(boolean enabled) {
+        metrics.setEnabled(enabled);
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, under the name
+     * <code>com.realexan.executor.ordered:type=OrderedExecutor,name=&lt;name&gt;</code>.
+     * The MBean is unregistered when the executor is shut down.
+     * 
+     * @return the name of the MBean.
+     * @throws IllegalStateException if the registration failed.
+     */
+    public ObjectName registerMBean() {
+        try {
+            ObjectName objectName = new ObjectName(
+                    "com.realexan.executor.ordered:type=OrderedExecutor,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName);
+            mbeanName = objectName;
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register the MBean of " + name, e);
+        }
+    }
+
+    /**
+     * Returns the coalescing token of the task, if it is a
+     * <code>CoalescingOrderedRunnable</code>.
+     * 
+     * @param task the task, or its future.
+     * @return the coalescing token, or null if the task doesn't coalesce.
+     */
+    private static Object coalescingTokenOf(OrderedRunnable task) {
+        Object actualTask = actualTaskOf(task);
+        if (actualTask instanceof CoalescingOrderedRunnable) {
+            return ((CoalescingOrderedRunnable) actualTask).getCoalescingToken();
+        }
+        return null;
+    }
+
+    /**
+     * Sets the limits on the count of tasks that can be queued, waiting for their
+     * turn. When a limit is reached, the overflow policy decides the fate of the
+     * tasks being submitted. By default, there are no limits.
+     * 
+     * @param maxQueuedPerKey the maximum count of tasks that can be queued for an
+     *                        ordering key.
+     * @param maxQueued       the maximum count of tasks that can be queued
+     *                        altogether. With multiple stripes, this limit is
+     *                        checked against a snapshot of the stripe counts, and
+     *                        hence it can be overshot by concurrent submits.
+     * @see #setOverflowPolicy(OverflowPolicy, long, TimeUnit)
+     */
+    public void setQueueCapacity(int maxQueuedPerKey, int maxQueued) {
+        if (maxQueuedPerKey <= 0) {
+            throw new IllegalArgumentException("Invalid maximum queued tasks per key " + maxQueuedPerKey);
+        }
+        if (maxQueued <= 0) {
+            throw new IllegalArgumentException("Invalid maximum queued tasks " + maxQueued);
+        }
+        this.maxQueuedPerKey = maxQueuedPerKey;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Sets the policy to be applied when a task is submitted while the queue
+     * capacity is reached. The default policy is <code>REJECT</code>.
+     * 
+     * @param overflowPolicy the overflow policy.
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        setOverflowPolicy(overflowPolicy, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the policy to be applied when a task is submitted while the queue
+     * capacity is reached. The default policy is <code>REJECT</code>.
+     * 
+     * @param overflowPolicy the overflow policy.
+     * @param blockTimeout   the maximum time for which a producer is blocked, when
+     *                       the policy blocks it. The task is rejected once the
+     *                       time is over.
+     * @param unit           the unit of <code>blockTimeout</code>.
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy, long blockTimeout, TimeUnit unit) {
+        Objects.requireNonNull(overflowPolicy, "The overflow policy cannot be null");
+        if (blockTimeout < 0) {
+            throw new IllegalArgumentException("Invalid block timeout " + blockTimeout);
+        }
+        this.blockTimeoutNanos = unit.toNanos(blockTimeout);
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Returns the count of times the overflow policy has been applied. For
+     * <code>BLOCK</code>, it is the count of submissions that had to wait, whether
+     * or not they got rejected eventually.
+     * 
+     * @param overflowPolicy the overflow policy.
+     * @return the count of times the policy has been applied.
+     */
+    public long getOverflowCount(OverflowPolicy overflowPolicy) {
+        return overflowCounts[overflowPolicy.ordinal()].sum();
+    }
+
+    /**
+     * Applies the overflow policy, if the queue capacity has been reached. Must be
+     * called holding the lock of the stripe, which is released while blocking.
+     * 
+     * @param stripe        the stripe of the key.
+     * @param task          the task being submitted.
+     * @param callerMayRun  true if the task can be run in the caller thread.
+     *                      <code>CALLER_RUNS</code> falls back to
+     *                      <code>BLOCK</code> otherwise.
+     * @param pendingLanes  the lanes created by the caller, and yet to be handed
+     *                      over to the pool. They are handed over before blocking.
+     *                      Can be null.
+     * @return true if the caller must run the new lane of the key itself.
+     * @throws RejectedExecutionException if the task is rejected.
+     */
+    private boolean makeRoom(Stripe stripe, OrderedRunnable task, boolean callerMayRun, List<Lane> pendingLanes) {
+        Object orderingKey = task.getOrderingKey();
+        Lane lane = stripe.lanes.get(orderingKey);
+        // A task that supersedes a queued one doesn't need more room.
+        if (!isFull(lane) || (lane != null && lane.supersedes(task))) {
+            return false;
+        }
+        OverflowPolicy policy = overflowPolicy;
+        switch (policy) {
+        case DROP_OLDEST:
+            // A multi key task is not dropped, as the lanes of its other keys wait for
+            // it.
+            if (lane != null && !lane.isEmpty() && !(lane.peek() instanceof MultiKeyBarrier)) {
+                overflowCounts[policy.ordinal()].increment();
+                lane.dropOldest();
+                return false;
+            }
+            // Nothing of this key to drop.
+            break;
+        case CALLER_RUNS:
+            // Running the task right away keeps the order only if the key is idle.
+            if (callerMayRun && lane == null) {
+                overflowCounts[policy.ordinal()].increment();
+                return true;
+            }
+            // Fall through.
+        case BLOCK:
+            overflowCounts[OverflowPolicy.BLOCK.ordinal()].increment();
+            awaitRoom(stripe, orderingKey, pendingLanes);
+            return false;
+        default:
+            break;
+        }
+        overflowCounts[OverflowPolicy.REJECT.ordinal()].increment();
+        throw new RejectedExecutionException("Queue capacity reached");
+    }
+
+    /**
+     * Blocks until the queue has room for a task of the key. Must be called holding
+     * the lock of the stripe. As the global limit is shared by all the stripes,
+     * the waits are done in slices, to recheck it.
+     * 
+     * @param stripe       the stripe of the key.
+     * @param orderingKey  the ordering key of the task being submitted.
+     * @param pendingLanes the lanes yet to be handed over to the pool, if any.
+     * @throws RejectedExecutionException if the wait times out, the thread is
+     *                                    interrupted, or the executor is shut down.
+     */
+    private void awaitRoom(Stripe stripe, Object orderingKey, List<Lane> pendingLanes) {
+        if (pendingLanes != null) {
+            handOver(pendingLanes);
+            pendingLanes.clear();
+        }
+        long timeoutNanos = blockTimeoutNanos;
+        long start = System.nanoTime();
+        ++stripe.waiters;
+        try {
+            while (isFull(stripe.lanes.get(orderingKey))) {
+                long remaining = timeoutNanos - (System.nanoTime() - start);
+                if (remaining <= 0) {
+                    throw new RejectedExecutionException("Timed out waiting for queue capacity");
+                }
+                stripe.wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(Math.min(remaining, CAPACITY_RECHECK_NANOS))));
+                if (stripe.checkShutdown()) {
+                    throw new RejectedExecutionException("Executor has been shut down");
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for queue capacity", ie);
+        } finally {
+            --stripe.waiters;
+        }
+    }
+
+    /**
+     * Returns true if the queue capacity, either of the key or of the executor, is
+     * reached.
+     * 
+     * @param lane the lane of the key, if any.
+     * @return true if the queue capacity is reached.
+     */
+    private boolean isFull(Lane lane) {
+        if (lane != null && lane.size() >= maxQueuedPerKey) {
+            return true;
+        }
+        int max = maxQueued;
+        if (max == Integer.MAX_VALUE) {
+            return false;
+        }
+        int queued = 0;
+        for (Stripe stripe : stripes) {
+            queued += stripe.queuedTaskCount;
+        }
+        return queued >= max;
+    }
+
+    /**
+     * Sets the handler to which the exceptions thrown by the tasks passed to
+     * <code>execute</code> are reported, along with the task. By default, the
+     * exceptions are logged.
+     * 
+     * @param exceptionHandler the exception handler.
+     */
+    public void setExceptionHandler(BiConsumer<OrderedRunnable, Throwable> exceptionHandler) {
+        this.exceptionHandler = Objects.requireNonNull(exceptionHandler, "The exception handler cannot be null");
+    }
+
+    /**
+     * Sets the handler to which the <code>ExpiringOrderedRunnable</code> tasks,
+     * that got skipped as their turn came after their deadlines, are reported. It
+     * is called by the worker which reached the task, before going on with the
+     * next task of the key, and hence must be fast. By default, the expired tasks
+     * are logged at debug level.
+     * 
+     * @param expiryHandler the expiry handler.
+     */
+    public void setExpiryHandler(Consumer<OrderedRunnable> expiryHandler) {
+        this.expiryHandler = Objects.requireNonNull(expiryHandler, "The expiry handler cannot be null");
+    }
+
+    /**
+     * Reports the exception to the exception handler. An exception thrown by the
+     * handler itself is logged and suppressed, so that the worker carries on.
+     * 
+     * @param task the task which failed.
+     * @param t    the exception.
+     */
+    private void handleException(OrderedRunnable task, Throwable t) {
+        try {
+            exceptionHandler.accept(task, t);
+        } catch (Throwable e) {
+            logger.error("Exception handler of " + name + " failed", e);
+        }
+    }
+
+    /**
+     * Submits a batch of <code>OrderedRunnable</code> instances to be executed.
+     * <p>
+     * The ordering is the same as that of submitting the tasks one by one, in the
+     * iteration order of the collection. However, the whole batch is queued
+     * holding the lock only once (once per stripe, if striped), and each ordering
+     * key which was idle before the batch gets handed over to the pool only once,
+     * however many tasks the batch has for the key.
+     * <p>
+     * The overflow policy is applied to each task of the batch, except that
+     * <code>CALLER_RUNS</code> blocks the caller, as running a part of the batch in
+     * the caller would hold up the rest of it. With a journal, the tasks are
+     * serialized before the locks are taken, and appended within the same critical
+     * sections. A batch with <code>MultiKeyOrderedRunnable</code> tasks is queued
+     * one task at a time, to keep their order with the other tasks.
+     * 
+     * @param items the tasks to be executed.
+     * @return the Futures of the tasks, in the iteration order of the collection.
+     * @throws RejectedExecutionException if the executor has been shut down, or a
+     *                                    task is rejected by the overflow policy.
+     *                                    Tasks of the batch that were queued
+     *                                    before the shut down was detected are
+     *                                    rejected through their futures, while
+     *                                    those queued before an overflow stay
+     *                                    queued.
+     */
+    public List<CompletableFuture<Void>> submitAll(Collection<? extends OrderedRunnable> items) {
+        Objects.requireNonNull(items, "The tasks cannot be null");
+        List<CompletableFuture<Void>> futures = new ArrayList<>(items.size());
+        // Tasks grouped by the stripe, preserving their order in the batch.
+        List<List<OrderedFutureRunnable<Void>>> batches = new ArrayList<>(Collections.nCopies(stripes.length, null));
+        boolean timed = metrics.isEnabled();
+        boolean multiKey = false;
+        for (OrderedRunnable item : items) {
+            OrderedFutureRunnable<Void> future = newFuture(item, timed);
+            futures.add(future);
+            multiKey |= item instanceof MultiKeyOrderedRunnable;
+            int stripeIndex = stripeIndexOf(item.getOrderingKey());
+            List<OrderedFutureRunnable<Void>> batch = batches.get(stripeIndex);
+            if (batch == null) {
+                batch = new ArrayList<>();
+                batches.set(stripeIndex, batch);
+            }
+            batch.add(future);
+        }
+        if (multiKey) {
+            // The batches by stripe would break the order between the multi key tasks
+            // and the others. Queue them one by one instead.
+            for (int i = 0; i < futures.size(); ++i) {
+                try {
+                    dispatchJournaled((OrderedFutureRunnable<Void>) futures.get(i));
+                } catch (RejectedExecutionException ree) {
+                    tasksRejected(futures.size() - i - 1);
+                    throw ree;
+                }
+            }
+            return futures;
+        }
+        // Serialized ahead of the locks, in the order of the batches.
+        List<List<JournalAppend>> journalBatches = null;
+        if (journal != null) {
+            journalBatches = new ArrayList<>(Collections.nCopies(stripes.length, null));
+            for (int i = 0; i < stripes.length; ++i) {
+                List<OrderedFutureRunnable<Void>> batch = batches.get(i);
+                if (batch != null) {
+                    List<JournalAppend> appends = new ArrayList<>(batch.size());
+                    batch.forEach(future -> appends.add(journalAppendOf(future)));
+                    journalBatches.set(i, appends);
+                }
+            }
+        }
+        List<Lane> newLanes = new ArrayList<>();
+        int queued = 0;
+        for (int i = 0; i < stripes.length; ++i) {
+            List<OrderedFutureRunnable<Void>> batch = batches.get(i);
+            if (batch == null) {
+                continue;
+            }
+            List<JournalAppend> appends = journalBatches == null ? null : journalBatches.get(i);
+            Stripe stripe = stripes[i];
+            synchronized (stripe) {
+                if (stripe.checkShutdown()) {
+                    tasksRejected(futures.size() - queued);
+                    handOver(newLanes);
+                    throw new RejectedExecutionException("Executor has been shut down");
+                }
+                for (int j = 0; j < batch.size(); ++j) {
+                    OrderedFutureRunnable<Void> future = batch.get(j);
+                    try {
+                        makeRoom(stripe, future, false, newLanes);
+                    } catch (RejectedExecutionException ree) {
+                        tasksRejected(futures.size() - queued);
+                        throw ree;
+                    }
+                    ++queued;
+                    JournalAppend journaled = appends == null ? null : appends.get(j);
+                    if (journaled != null) {
+                        journaled.append();
+                    }
+                    Lane lane = stripe.enqueue(future);
+                    if (lane != null) {
+                        newLanes.add(lane);
+                    }
+                }
+            }
+            // Handed over stripe by stripe, so that a producer blocked for capacity
+            // only ever has to hand over the lanes of the stripe it holds.
+            handOver(newLanes);
+            newLanes.clear();
+        }
+        return futures;
+    }
+
+    /**
+     * Processes the elements of the stream, in parallel across their keys, and in
+     * the encounter order within a key. The stream is pulled on the calling
+     * thread, as the elements are submitted, with at most
+     * <code>DEFAULT_MAX_IN_FLIGHT</code> elements submitted and yet to be
+     * processed at a time.
+     * 
+     * @param <T>         the type of the elements.
+     * @param stream      the stream of the elements.
+     * @param keyFunction the function which gives the ordering key of an element.
+     * @param action      the action to be performed on each element.
+     * @return a CompletableFuture which gets completed once all the elements are
+     *         processed.
+     * @see #forEachOrdered(Stream, Function, Consumer, int)
+     */
+    public <T> CompletableFuture<Void> forEachOrdered(Stream<T> stream, Function<? super T, ?> keyFunction,
+            Consumer<? super T> action) {
+        return forEachOrdered(stream, keyFunction, action, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Processes the elements of the stream, in parallel across their keys, and in
+     * the encounter order within a key, as if each element were submitted as a
+     * task with its key. The stream is pulled on the calling thread, as the
+     * elements are submitted, and the calling thread is blocked while
+     * <code>maxInFlight</code> elements are submitted and yet to be processed.
+     * Thus, the stream is not held in memory, however large it is.
+     * <p>
+     * This method returns once the whole stream is submitted, or an element fails.
+     * On the first failure, be it the action throwing, or the executor rejecting
+     * an element, the stream is not pulled any further, and the returned future is
+     * completed with the exception, while the elements already submitted are
+     * still processed. The stream is not closed.
+     * 
+     * @param <T>         the type of the elements.
+     * @param stream      the stream of the elements.
+     * @param keyFunction the function which gives the ordering key of an element.
+     * @param action      the action to be performed on each element.
+     * @param maxInFlight the maximum count of elements submitted and yet to be
+     *                    processed.
+     * @return a CompletableFuture which gets completed once all the elements are
+     *         processed, or exceptionally with the first failure.
+     */
+    public <T> CompletableFuture<Void> forEachOrdered(Stream<T> stream, Function<? super T, ?> keyFunction,
+            Consumer<? super T> action, int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("Invalid maximum in flight " + maxInFlight);
+        }
+        Objects.requireNonNull(keyFunction, "The key function cannot be null");
+        Objects.requireNonNull(action, "The action cannot be null");
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        Semaphore permits = new Semaphore(maxInFlight);
+        // One more than the elements in flight, till the stream is exhausted.
+        AtomicInteger pending = new AtomicInteger(1);
+        try {
+            Iterator<T> elements = stream.iterator();
+            while (!result.isDone() && elements.hasNext()) {
+                T element = elements.next();
+                permits.acquire();
+                pending.incrementAndGet();
+                CompletableFuture<Void> future;
+                try {
+                    future = submit(new StreamElement<>(keyFunction.apply(element), element, action));
+                } catch (RuntimeException e) {
+                    permits.release();
+                    pending.decrementAndGet();
+                    throw e;
+                }
+                future.whenComplete((r, t) -> {
+                    if (t != null) {
+                        result.completeExceptionally(t);
+                    }
+                    permits.release();
+                    if (pending.decrementAndGet() == 0) {
+                        result.complete(null);
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(e);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        if (pending.decrementAndGet() == 0) {
+            result.complete(null);
+        }
+        return result;
+    }
+
+    /**
+     * Validates the task and creates its future.
+     * 
+     * @param item  the task.
+     * @param timed true if the submission time is to be recorded.
+     * @return the future of the task.
+     */
+    private static OrderedFutureRunnable<Void> newFuture(OrderedRunnable item, boolean timed) {
+        Objects.requireNonNull(item, "The task cannot be null");
+        Objects.requireNonNull(item.getOrderingKey(), "The ordering key for the task cannot be null");
+        OrderedFutureRunnable<Void> future = new OrderedFutureRunnable<>(item);
+        if (timed) {
+            future.setSubmitNanos(System.nanoTime());
+        }
+        return future;
+    }
+
+    /**
+     * Validates the callable and creates its future.
+     * 
+     * @param item  the callable.
+     * @param timed true if the submission time is to be recorded.
+     * @return the future of the callable.
+     */
+    private static <V> OrderedFutureRunnable<V> newFuture(OrderedCallable<V> item, boolean timed) {
+        Objects.requireNonNull(item, "The task cannot be null");
+        Objects.requireNonNull(item.getOrderingKey(), "The ordering key for the task cannot be null");
+        OrderedFutureRunnable<V> future = new OrderedFutureRunnable<>(item);
+        if (timed) {
+            future.setSubmitNanos(System.nanoTime());
+        }
+        return future;
+    }
+
+    /**
+     * Hands the lanes over to the pool. All the lanes are attempted, even if the
+     * pool rejects some, so that none of them is left stranded.
+     * 
+     * @param newLanes the lanes which have tasks ready to run.
+     * @throws RejectedExecutionException if the pool rejected any of the lanes.
+     */
+    private void handOver(List<Lane> newLanes) {
+        RejectedExecutionException rejection = null;
+        for (Lane lane : newLanes) {
+            try {
+                handOver(lane);
+            } catch (RejectedExecutionException ree) {
+                rejection = ree;
+            }
+        }
+        if (rejection != null) {
+            throw rejection;
+        }
+    }
+
+    /**
+     * Hands the lane over to the pool, for running its queued tasks. If the pool
+     * rejects it, the queued tasks of the lane are rejected too.
+     * 
+     * @param lane the lane which has tasks ready to run.
+     * @throws RejectedExecutionException if the pool rejected the lane.
+     */
+    private void handOver(Lane lane) {
+        if (readyQueue == null) {
+            try {
+                executor.execute(lane);
+            } catch (RejectedExecutionException ree) {
+                discard(lane);
+                throw ree;
+            }
+            return;
+        }
+        synchronized (readyQueue) {
+            if (workerCountController.get() != null) {
+                lane.readyNanos = System.nanoTime();
+            }
+            readyQueue.add(lane.group, lane);
+        }
+        try {
+            executor.execute(readyLaneRunner);
+        } catch (RejectedExecutionException ree) {
+            // A lane has to leave the ready queue for want of a runner. If this lane
+            // got picked up by the runner of another one, that one has to leave.
+            Lane unqueued = lane;
+            synchronized (readyQueue) {
+                if (!readyQueue.remove(lane.group, lane)) {
+                    unqueued = readyQueue.poll();
+                    if (unqueued != null) {
+                        readyQueue.charge(unqueued.group, 0);
+                    }
+                }
+            }
+            if (unqueued != null) {
+                discard(unqueued);
+            }
+            throw ree;
+        }
+    }
+
+    /**
+     * Removes the lane, and rejects its queued tasks.
+     * 
+     * @param lane the lane which the pool rejected.
+     */
+    private void discard(Lane lane) {
+        synchronized (lane.stripe) {
+            lane.stripe.removeLane(lane);
+            lane.reject();
+        }
+    }
+
+    /**
+     * Runs the lane which is next in the ready queue, and charges the time taken
+     * to its group.
+     */
+    private void runReadyLane() {
+        Lane lane;
+        long readyNanos;
+        synchronized (readyQueue) {
+            lane = readyQueue.poll();
+            if (lane == null) {
+                return;
+            }
+            readyNanos = lane.readyNanos;
+            lane.readyNanos = 0;
+        }
+        WorkerCountController controller = workerCountController.get();
+        if (controller != null && readyNanos != 0) {
+            controller.keyRun(System.nanoTime() - readyNanos);
+        }
+        LongSupplier clock = workerClock;
+        long start = clock.getAsLong();
+        try {
+            lane.run();
+        } finally {
+            long elapsed = clock.getAsLong() - start;
+            synchronized (readyQueue) {
+                readyQueue.charge(lane.group, elapsed);
+            }
+        }
+    }
+
+    /**
+     * Sets the function which maps an ordering key to its group, like the tenant
+     * owning the key. With a bounded pool, the groups share the workers in
+     * proportion to their weights, irrespective of the count of their keys which
+     * are ready to run. Within a group, the keys are picked up in the order of
+     * their priorities. The keys for which the function gives null belong to a
+     * common default group. It applies to the keys which become busy after this
+     * call, and is called holding the lock of the stripe of the key, and hence
+     * must be fast.
+     * 
+     * @param groupExtractor the function which maps an ordering key to its group.
+     */
+    public void setGroupExtractor(Function<Object, ?> groupExtractor) {
+        this.groupExtractor = Objects.requireNonNull(groupExtractor, "The group extractor cannot be null");
+    }
+
+    /**
+     * Sets the clock by which the worker time taken by the groups is measured, so
+     * that the tests can control the shares of the groups.
+     * 
+     * @param workerClock the clock, in nanoseconds.
+     */
+    void setWorkerClock(LongSupplier workerClock) {
+        this.workerClock = workerClock;
+    }
+
+    /**
+     * Sets the weight of the group, which is its share of the workers relative to
+     * the other groups, when all of them have keys ready to run. The default
+     * weight is one.
+     * 
+     * @param group  the group, as given by the group extractor.
+     * @param weight the weight.
+     */
+    public void setGroupWeight(Object group, int weight) {
+        Objects.requireNonNull(group, "The group cannot be null");
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Invalid weight " + weight);
+        }
+        if (weight == DEFAULT_GROUP_WEIGHT) {
+            groupWeights.remove(group);
+        } else {
+            groupWeights.put(group, weight);
+        }
+    }
+
+    /**
+     * Returns the group of the ordering key.
+     * 
+     * @param orderingKey the ordering key.
+     * @return the group of the key.
+     */
+    private Object groupOf(Object orderingKey) {
+        Function<Object, ?> extractor = groupExtractor;
+        Object group = extractor == null ? null : extractor.apply(orderingKey);
+        return group == null ? DEFAULT_GROUP : group;
+    }
+
+    /**
+     * Sets the quantum up to which a worker keeps executing the queued tasks of an
+     * ordering key, once it has picked the key up. When either of the limits is
+     * reached, and there are more tasks queued for the key, the worker hands the
+     * key back to the ready queue and moves on, so that the other keys don't
+     * starve. By default, a worker executes one task at a time.
+     * 
+     * @param maxTasks the maximum count of tasks to execute in a go.
+     * @param maxTime  the maximum time to keep executing the tasks of a key. The
+     *                 task which is running when the time runs out is finished
+     *                 before yielding.
+     * @param unit     the unit of <code>maxTime</code>.
+     */
+    public void setDrainQuantum(int maxTasks, long maxTime, TimeUnit unit) {
+        if (maxTasks <= 0) {
+            throw new IllegalArgumentException("Invalid maximum task count " + maxTasks);
+        }
+        if (maxTime <= 0) {
+            throw new IllegalArgumentException("Invalid maximum time " + maxTime);
+        }
+        this.drainQuantumTasks = maxTasks;
+        this.drainQuantumNanos = unit.toNanos(maxTime);
+    }
+
+    /**
+     * Sets the aging of the ordering keys waiting in the ready queue. A key which
+     * has been waiting for the aging interval goes ahead of the keys that become
+     * ready afterwards with one priority level higher, and so on. Thus, a low
+     * priority key waits at most for the difference in priorities times the
+     * interval. By default, there is no aging, and a key never goes ahead of a
+     * key with higher priority. The aging applies to the keys which become ready
+     * after this call.
+     * 
+     * @param agingInterval the time for which a key has to wait, to gain a
+     *                      priority level.
+     * @param unit          the unit of <code>agingInterval</code>.
+     */
+    public void setPriorityAging(long agingInterval, TimeUnit unit) {
+        if (agingInterval <= 0) {
+            throw new IllegalArgumentException("Invalid aging interval " + agingInterval);
+        }
+        this.priorityAgingNanos = unit.toNanos(agingInterval);
+    }
+
+    /**
+     * Lets the count of workers adapt to the load, within the bounds. The count is
+     * revised every 100 milliseconds, from the mean time the ordering keys waited
+     * in the ready queue for a free worker. A worker is added while the wait is
+     * above the target, unless the last one added didn't raise the count of keys
+     * run, and a quarter of the workers are let go while the wait is below half
+     * the target. The wait of the tasks behind the running tasks of their own keys
+     * is not counted, as more workers wouldn't cut it. Applies only to a bounded
+     * pool of this executor's own.
+     * 
+     * @param minWorkerCount the minimum count of workers.
+     * @param maxWorkerCount the maximum count of workers.
+     * @param targetWait     the mean wait for a free worker aimed at.
+     * @param unit           the unit of <code>targetWait</code>.
+     * @throws IllegalStateException if the pool is unbounded, or shared.
+     * @see #getMetrics()
+     */
+    public void setAdaptiveWorkerCount(int minWorkerCount, int maxWorkerCount, long targetWait, TimeUnit unit) {
+        if (readyQueue == null || !ownsExecutor) {
+            throw new IllegalStateException("The worker count can adapt only for a bounded pool of " + name);
+        }
+        WorkerCountController controller = new WorkerCountController((ThreadPoolExecutor) executor, minWorkerCount,
+                maxWorkerCount, unit.toNanos(targetWait), TimingWheel.shared());
+        WorkerCountController previous = workerCountController.getAndSet(controller);
+        if (previous != null) {
+            previous.stop();
+        }
+        controller.start();
+        if (shutDown) {
+            controller.stop();
+        }
+    }
+
+    /**
+     * Returns the controller resizing the pool of workers.
+     * 
+     * @return the controller, or null if the count of workers is fixed.
+     */
+    WorkerCountController getWorkerCountController() {
+        return workerCountController.get();
+    }
+
+    /**
+     * Returns the priority of the task.
+     * 
+     * @param task the task, its future, or its coalescing slot.
+     * @return the priority of the task.
+     */
+    private static int priorityOf(OrderedRunnable task) {
+        if (task instanceof CoalescingSlot) {
+            task = ((CoalescingSlot) task).task;
+        } else if (task instanceof MultiKeyBarrier) {
+            task = ((MultiKeyBarrier) task).task;
+        }
+        Object actualTask = actualTaskOf(task);
+        if (actualTask instanceof PrioritizedOrderedRunnable) {
+            return ((PrioritizedOrderedRunnable) actualTask).getPriority();
+        }
+        return PrioritizedOrderedRunnable.DEFAULT_PRIORITY;
+    }
+
+    /**
+     * Returns the stripe to which the ordering key is hashed.
+     * 
+     * @param orderingKey the ordering key.
+     * @return the stripe of the key.
+     */
+    private Stripe stripeOf(Object orderingKey) {
+        return stripes[stripeIndexOf(orderingKey)];
+    }
+
+    /**
+     * Returns the index of the stripe to which the ordering key is hashed.
+     * 
+     * @param orderingKey the ordering key.
+     * @return the index of the stripe of the key.
+     */
+    private int stripeIndexOf(Object orderingKey) {
+        if (stripes.length == 1) {
+            return 0;
+        }
+        if (orderingKey instanceof HierarchicalKey) {
+            // A hierarchy shares a stripe, and thus a lock.
+            orderingKey = ((HierarchicalKey) orderingKey).getRoot();
+        }
+        int h = orderingKey.hashCode();
+        // Spread the higher bits, as the keys are mostly Strings.
+        h ^= (h >>> 16);
+        return (h & Integer.MAX_VALUE) % stripes.length;
+    }
+
+    /**
+     * Returns the count of tasks queued, due to tasks with the same ordering keys
+     * being executed.
+     * 
+     * @return the count of queued tasks.
+     */
+    @Override
+    public int getQueuedTaskCount() {
+        int count = 0;
+        for (int i = 0; i < stripes.length; ++i) {
+            count += getQueuedTaskCount(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the count of tasks queued in the stripe, due to tasks with the same
+     * ordering keys being executed.
+     * 
+     * @param stripeIndex the index of the stripe.
+     * @return the count of queued tasks in the stripe.
+     */
+    public int getQueuedTaskCount(int stripeIndex) {
+        Stripe stripe = stripes[stripeIndex];
+        synchronized (stripe) {
+            return stripe.queuedTaskCount;
+        }
+    }
+
+    /**
+     * Returns the count of tasks being executed at the moment, that is the count of
+     * ordering keys held by a worker. The keys waiting for a free worker, or held
+     * up by a task on several keys, are not counted.
+     * 
+     * @return the count of tasks being executed.
+     * @see #getActiveKeyCount()
+     */
+    public int getExecutingTaskCount() {
+        int count = 0;
+        for (int i = 0; i < stripes.length; ++i) {
+            count += getExecutingTaskCount(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the count of tasks of the stripe, being executed at the moment.
+     * 
+     * @param stripeIndex the index of the stripe.
+     * @return the count of tasks of the stripe being executed.
+     */
+    public int getExecutingTaskCount(int stripeIndex) {
+        Stripe stripe = stripes[stripeIndex];
+        synchronized (stripe) {
+            return stripe.runningLanes;
+        }
+    }
+
+    /**
+     * Returns the count of distinct ordering keys which have tasks running, or
+     * waiting to run.
+     * 
+     * @return the count of active keys.
+     */
+    public int getActiveKeyCount() {
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.lanes.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the count of tasks queued for the ordering key with the most tasks
+     * queued.
+     * 
+     * @return the largest count of tasks queued for a key.
+     */
+    int getLargestKeyBacklog() {
+        int largest = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (Lane lane : stripe.lanes.values()) {
+                    largest = Math.max(largest, lane.size());
+                }
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * Returns the count of stripes.
+     * 
+     * @return the count of stripes.
+     */
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     * Returns the pool size.
+     * 
+     * @return the count of worker threads, or -1 if the pool is shared, and is not
+     *         a ThreadPoolExecutor.
+     */
+    public int getPoolSize() {
+        if (executor instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) executor).getPoolSize();
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if this executor has been shut down.
+     * 
+     * @return true if shut down.
+     */
+    public boolean isShutdown() {
+        return shutDown;
+    }
+
+    /**
+     * Returns the count of ordering keys which are ready to run, and are waiting
+     * for a free worker. This is always zero for an unbounded pool.
+     * 
+     * @return the count of keys waiting in the ready queue.
+     */
+    public int getReadyKeyCount() {
+        if (readyQueue == null) {
+            return 0;
+        }
+        synchronized (readyQueue) {
+            return readyQueue.size();
+        }
+    }
+
+    /**
+     * Shuts down the executor. A pool of workers shared with other executors is
+     * left running.
+     */
+    @Override
+    public void shutDown() {
+        shutDown = true;
+        // The lanes held up at a barrier have no worker to clear them.
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.checkShutdown();
+            }
+        }
+        WorkerCountController controller = workerCountController.get();
+        if (controller != null) {
+            controller.stop();
+        }
+        if (ownsExecutor) {
+            ((ThreadPoolExecutor) executor).shutdown();
+        }
+        for (ScheduledDispatch scheduled : scheduledDispatches) {
+            scheduled.cancel();
+            scheduled.future.reject();
+        }
+        ObjectName objectName = mbeanName;
+        if (objectName != null) {
+            mbeanName = null;
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                logger.warn("Could not unregister the MBean of " + name, e);
+            }
+        }
+    }
+
+    /**
+     * The policies that can be applied when a task is submitted while the queue
+     * capacity is reached.
+     * 
+     * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+     *
+     */
+    public static enum OverflowPolicy {
+        /**
+         * Blocks the producer until there is room, or the block timeout is over, in
+         * which case the task is rejected.
+         */
+        BLOCK,
+        /**
+         * Rejects the task by throwing a <code>RejectedExecutionException</code>.
+         */
+        REJECT,
+        /**
+         * Drops the oldest queued task of the same ordering key, completing its
+         * future with a <code>RejectedExecutionException</code>. If the key has no
+         * queued tasks, the new task is rejected.
+         */
+        DROP_OLDEST,
+        /**
+         * Runs the task in the producer thread, if its ordering key is idle. If not,
+         * running it right away would break the order, and hence the producer is
+         * blocked as in <code>BLOCK</code>.
+         */
+        CALLER_RUNS
+    }
+
+    /**
+     * A partition of the ordering keys, which has its own lock and lanes. The
+     * stripe instance itself is used as the lock.
+     * 
+     * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+     *
+     */
+    private class Stripe {
+
+        /**
+         * The map of ordering keys to their lanes. A key has a lane only while a
+         * task with that key is being executed, or is handed over to the pool for
+         * execution. The lane holds the tasks of that key which are yet to be
+         * executed, in the order they were submitted.
+         */
+        private final Map<Object, Lane> lanes = new HashMap<>();
+
+        /**
+         * The count of tasks waiting in the lanes. It is updated holding the lock of
+         * the stripe, and is volatile so that the global queue capacity can be
+         * checked without holding the locks of all the stripes.
+         */
+        private volatile int queuedTaskCount;
+
+        /**
+         * The count of lanes held by a worker, executing their tasks.
+         */
+        private int runningLanes;
+
+        /**
+         * The count of producers blocked for queue capacity.
+         */
+        private int waiters;
+
+        /**
+         * The index of the hierarchical keys of this stripe, which have descendants
+         * with lanes, or unfinished tasks of their own. Created on the first
+         * hierarchical key.
+         */
+        private Map<HierarchicalKey, HierarchyNode> hierarchy;
+
+        /**
+         * The sequence of the tasks with hierarchical keys, which orders them.
+         */
+        private long hierarchySequence;
+
+        /**
+         * Wakes up the producers blocked for queue capacity, if any, as a task got
+         * taken out of the queue. Must be called holding the lock of the stripe.
+         */
+        void taskDequeued() {
+            --queuedTaskCount;
+            if (waiters > 0) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * Queues the task in the lane of its ordering key. If the key is idle, a new
+         * lane is created for it, which the caller must hand over to the pool after
+         * releasing the lock. Must be called holding the lock of the stripe.
+         * 
+         * @param task the task to be queued.
+         * @return the new lane, if the key was idle, null otherwise.
+         */
+        Lane enqueue(OrderedRunnable task) {
+            Object orderingKey = task.getOrderingKey();
+            if (orderingKey instanceof HierarchicalKey) {
+                return enqueue(task, (HierarchicalKey) orderingKey);
+            }
+            Lane lane = lanes.get(orderingKey);
+            // If another task with the same key is being executed,
+            // queue this item in its lane and return.
+            if (lane != null) {
+                lane.add(task);
+                return null;
+            }
+            lane = new Lane(orderingKey, this);
+            lane.add(task);
+            lane.markReady();
+            lanes.put(orderingKey, lane);
+            return lane;
+        }
+
+        /**
+         * Queues the barrier of a multi key task in the lane of one of its keys. If
+         * the key is idle, a new lane is created for it, and added to the list of
+         * new lanes, which the caller must hand over to the pool after releasing the
+         * locks. Must be called holding the lock of the stripe.
+         * 
+         * @param orderingKey the ordering key.
+         * @param barrier     the barrier of the task.
+         * @param newLanes    the list of new lanes.
+         */
+        void enqueue(Object orderingKey, MultiKeyBarrier barrier, List<Lane> newLanes) {
+            Lane lane = lanes.get(orderingKey);
+            boolean idle = lane == null;
+            if (idle) {
+                lane = new Lane(orderingKey, this);
+                lanes.put(orderingKey, lane);
+                newLanes.add(lane);
+            }
+            barrier.append(lane);
+            if (idle) {
+                lane.markReady();
+            }
+        }
+
+        /**
+         * Queues a task with a hierarchical key, as a barrier, in the lane of its key
+         * and in the lanes of the descendants of the key. A new lane of the key is
+         * queued behind the unfinished tasks of the ancestors of the key. Must be
+         * called holding the lock of the stripe.
+         * 
+         * @param task        the task to be queued.
+         * @param orderingKey the ordering key of the task.
+         * @return the new lane, if it is to be handed over to the pool, null
+         *         otherwise.
+         */
+        private Lane enqueue(OrderedRunnable task, HierarchicalKey orderingKey) {
+            if (metrics.isEnabled()) {
+                metrics.taskSubmitted();
+            }
+            if (hierarchy == null) {
+                hierarchy = new HashMap<>();
+            }
+            Lane lane = lanes.get(orderingKey);
+            boolean ready = false;
+            if (lane == null) {
+                lane = new Lane(orderingKey, this);
+                lanes.put(orderingKey, lane);
+                ready = gate(lane, orderingKey);
+            }
+            MultiKeyBarrier barrier = new MultiKeyBarrier(task, orderingKey, hierarchySequence++);
+            barrier.append(lane);
+            HierarchyNode node = hierarchy.computeIfAbsent(orderingKey, k -> new HierarchyNode());
+            for (Lane descendant : node.descendantLanes) {
+                barrier.append(descendant);
+            }
+            node.lastBarrier = barrier;
+            if (!ready) {
+                return null;
+            }
+            lane.markReady();
+            return lane;
+        }
+
+        /**
+         * Indexes the new lane of a hierarchical key under the ancestors of the key,
+         * and queues it behind their unfinished tasks, in the order of those tasks,
+         * as they are queued in the same order in the other lanes. Must be called
+         * holding the lock of the stripe.
+         * 
+         * @param lane        the new lane.
+         * @param orderingKey the key of the lane.
+         * @return true if the lane is to be handed over to the pool, false if it
+         *         waits for a task of an ancestor being run, which hands it over
+         *         once done.
+         */
+        private boolean gate(Lane lane, HierarchicalKey orderingKey) {
+            List<MultiKeyBarrier> gates = null;
+            for (HierarchicalKey ancestor = orderingKey.getParent(); ancestor != null; ancestor = ancestor
+                    .getParent()) {
+                HierarchyNode node = hierarchy.computeIfAbsent(ancestor, k -> new HierarchyNode());
+                node.descendantLanes.add(lane);
+                if (node.lastBarrier != null) {
+                    if (gates == null) {
+                        gates = new ArrayList<>();
+                    }
+                    gates.add(node.lastBarrier);
+                }
+            }
+            if (gates == null) {
+                return true;
+            }
+            gates.sort((a, b) -> Long.compare(a.sequence, b.sequence));
+            boolean ready = true;
+            for (MultiKeyBarrier gate : gates) {
+                if (gate.isRunning()) {
+                    gate.lanes.add(lane);
+                    ready = false;
+                } else {
+                    gate.append(lane);
+                }
+            }
+            return ready;
+        }
+
+        /**
+         * Removes the lane, which has run out of tasks, along with its entries in
+         * the index of hierarchical keys. Must be called holding the lock of the
+         * stripe.
+         * 
+         * @param lane the lane.
+         */
+        void removeLane(Lane lane) {
+            if (!lanes.remove(lane.key, lane)) {
+                // Removed already, as it was held up at a barrier on shutdown.
+                return;
+            }
+            if (!(lane.key instanceof HierarchicalKey)) {
+                return;
+            }
+            for (HierarchicalKey ancestor = ((HierarchicalKey) lane.key).getParent(); ancestor != null; ancestor = ancestor
+                    .getParent()) {
+                HierarchyNode node = hierarchy.get(ancestor);
+                node.descendantLanes.remove(lane);
+                if (node.isIdle()) {
+                    hierarchy.remove(ancestor);
+                }
+            }
+        }
+
+        /**
+         * Marks the task with the hierarchical key as finished, so that the new lanes
+         * of the descendants of the key need not wait for it. Must be called holding
+         * the lock of the stripe.
+         * 
+         * @param barrier the barrier of the task.
+         */
+        void released(MultiKeyBarrier barrier) {
+            barrier.released = true;
+            HierarchyNode node = hierarchy.get(barrier.key);
+            if (node.lastBarrier == barrier) {
+                node.lastBarrier = null;
+                if (node.isIdle()) {
+                    hierarchy.remove(barrier.key);
+                }
+            }
+        }
+
+        /**
+         * If executor is shutdown, this will complete the futures of the waiting
+         * tasks with a rejection (so that their get() calls will not get blocked),
+         * and clear the lanes. The lanes held up at a barrier are removed, as the
+         * task of the barrier gets rejected, or if it is being run, lets them go to
+         * find the executor shut down. Must be called holding the lock of the
+         * stripe.
+         * 
+         * @return true if executor is shut down, false otherwise.
+         */
+        boolean checkShutdown() {
+            if (!shutDown) {
+                return false;
+            }
+            List<Lane> parkedLanes = null;
+            for (Lane lane : lanes.values()) {
+                lane.reject();
+                if (lane.parked) {
+                    if (parkedLanes == null) {
+                        parkedLanes = new ArrayList<>();
+                    }
+                    parkedLanes.add(lane);
+                }
+            }
+            if (parkedLanes != null) {
+                parkedLanes.forEach(this::removeLane);
+            }
+            return true;
+        }
+
+    }
+
+    /**
+     * The FIFO of tasks which share an ordering key. The lane itself is the
+     * runnable handed over to the ExecutorService, and each run executes the tasks
+     * at the head of the lane, up to the drain quantum. Once done, the lane is
+     * handed over again if there are more tasks queued, so that finishing a task
+     * and picking the next one for the same key takes constant time irrespective
+     * of the number of tasks queued for other keys.
+     * 
+     * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+     *
+     */
+    private class Lane implements Runnable, Comparable<Lane>, OrderedFutureRunnable.TaskQueue {
+
+        /**
+         * The ordering key shared by the tasks in this lane.
+         */
+        private final Object key;
+
+        /**
+         * The stripe to which the ordering key belongs.
+         */
+        private final Stripe stripe;
+
+        /**
+         * The tasks yet to be executed, in the order of submission. Coalescing tasks
+         * are queued inside a <code>CoalescingSlot</code>.
+         */
+        private final Queue<OrderedRunnable> tasks = new ArrayDeque<>();
+
+        /**
+         * The slots of the queued coalescing tasks, by their coalescing tokens.
+         * Created on the first coalescing task of the lane.
+         */
+        private Map<Object, CoalescingSlot> coalescingSlots;
+
+        /**
+         * The rank of the lane in the ready queue, lower first. It is the negated
+         * priority, or with aging, the time the lane became ready, advanced by the
+         * aging interval per priority level.
+         */
+        private long readyRank;
+
+        /**
+         * The sequence in which the lane became ready, which orders the lanes of the
+         * same rank.
+         */
+        private long readyOrder;
+
+        /**
+         * The time the lane got into the ready queue, while the count of workers
+         * adapts to the load, else zero. Guarded by the lock of the ready queue.
+         */
+        private long readyNanos;
+
+        /**
+         * The count of cancelled tasks left in the lane, to be skipped when they
+         * reach the head.
+         */
+        private int unlinkedCount;
+
+        /**
+         * The count of the barriers in the lane, whose tasks are counted as queued in
+         * the lane of another of their keys.
+         */
+        private int uncountedCount;
+
+        /**
+         * Whether the lane is held up at a barrier, waiting for the other lanes of
+         * its task.
+         */
+        private boolean parked;
+
+        /**
+         * The group of the ordering key.
+         */
+        private final Object group;
+
+        Lane(Object key, Stripe stripe) {
+            this.key = key;
+            this.stripe = stripe;
+            this.group = groupOf(key);
+        }
+
+        /**
+         * Queues the task at the tail of the lane. A coalescing task, which has an
+         * older task with the same token queued, takes the place of that task
+         * instead. Must be called holding the lock of the stripe.
+         * 
+         * @param task the task to be queued.
+         */
+        void add(OrderedRunnable task) {
+            if (metrics.isEnabled()) {
+                metrics.taskSubmitted();
+            }
+            if (task instanceof OrderedFutureRunnable) {
+                ((OrderedFutureRunnable<?>) task).setQueue(this);
+            }
+            Object token = coalescingTokenOf(task);
+            if (token == null) {
+                tasks.add(task);
+                ++stripe.queuedTaskCount;
+                return;
+            }
+            if (coalescingSlots == null) {
+                coalescingSlots = new HashMap<>();
+            }
+            CoalescingSlot slot = coalescingSlots.get(token);
+            if (slot != null) {
+                OrderedRunnable superseded = slot.task;
+                slot.task = task;
+                supersededTaskCount.increment();
+                if (superseded instanceof OrderedFutureRunnable) {
+                    ((OrderedFutureRunnable<?>) superseded).supersede();
+                }
+                return;
+            }
+            slot = new CoalescingSlot(token, task);
+            coalescingSlots.put(token, slot);
+            tasks.add(slot);
+            ++stripe.queuedTaskCount;
+        }
+
+        /**
+         * Ranks the lane for the ready queue, by the priority of the task at its
+         * head. Must be called holding the lock of the stripe, before the lane is
+         * handed over to the pool.
+         */
+        void markReady() {
+            long priority = priorityOf(peek());
+            long aging = priorityAgingNanos;
+            if (aging == NO_PRIORITY_AGING) {
+                readyRank = -priority;
+            } else {
+                long advance = priority * aging;
+                if (priority != 0 && advance / priority != aging) {
+                    // Overflown, saturate.
+                    advance = priority > 0 ? Long.MAX_VALUE / 2 : Long.MIN_VALUE / 2;
+                }
+                readyRank = System.nanoTime() - advance;
+            }
+            readyOrder = readySequence.getAndIncrement();
+        }
+
+        @Override
+        public int compareTo(Lane other) {
+            int result = Long.compare(readyRank, other.readyRank);
+            return result != 0 ? result : Long.compare(readyOrder, other.readyOrder);
+        }
+
+        /**
+         * Returns true if the task would take the place of a queued task, rather
+         * than being queued at the tail. Must be called holding the lock of the
+         * stripe.
+         * 
+         * @param task the task.
+         * @return true if the task supersedes a queued task.
+         */
+        boolean supersedes(OrderedRunnable task) {
+            Object token = coalescingTokenOf(task);
+            return token != null && coalescingSlots != null && coalescingSlots.containsKey(token);
+        }
+
+        /**
+         * Takes the task at the head of the lane out, unwrapping it from its slot if
+         * it is a coalescing task. Must be called holding the lock of the stripe.
+         * 
+         * @return the task at the head, or null if the lane is empty.
+         */
+        OrderedRunnable poll() {
+            skipUnlinked();
+            OrderedRunnable task = tasks.poll();
+            if (task == null) {
+                return null;
+            }
+            if (task instanceof MultiKeyBarrier && ((MultiKeyBarrier) task).countedLane != this) {
+                --uncountedCount;
+            } else {
+                stripe.taskDequeued();
+            }
+            task = unwrap(task);
+            if (task instanceof OrderedFutureRunnable) {
+                // No longer in the lane, to be unlinked on cancellation.
+                ((OrderedFutureRunnable<?>) task).setQueue(null);
+            }
+            return task;
+        }
+
+        /**
+         * Returns the task at the head of the lane, without taking it out. Must be
+         * called holding the lock of the stripe.
+         * 
+         * @return the task at the head, as queued, or null if the lane is empty.
+         */
+        OrderedRunnable peek() {
+            skipUnlinked();
+            return tasks.peek();
+        }
+
+        /**
+         * Returns true if the lane has no tasks queued. Must be called holding the
+         * lock of the stripe.
+         * 
+         * @return true if the lane is empty.
+         */
+        boolean isEmpty() {
+            skipUnlinked();
+            return tasks.isEmpty();
+        }
+
+        /**
+         * Returns the count of tasks queued in the lane, leaving out the cancelled
+         * ones yet to be skipped. Must be called holding the lock of the stripe.
+         * 
+         * @return the count of queued tasks.
+         */
+        int size() {
+            return tasks.size() - unlinkedCount;
+        }
+
+        /**
+         * Drops the cancelled tasks at the head of the lane.
+         */
+        private void skipUnlinked() {
+            while (unlinkedCount > 0 && isUnlinked(tasks.peek())) {
+                tasks.poll();
+                --unlinkedCount;
+            }
+        }
+
+        /**
+         * Returns true if the task, as queued, got cancelled and unlinked.
+         * 
+         * @param task the task, as queued.
+         * @return true if the task is to be skipped.
+         */
+        private boolean isUnlinked(OrderedRunnable task) {
+            if (task instanceof CoalescingSlot) {
+                return ((CoalescingSlot) task).task == null;
+            }
+            return task instanceof OrderedFutureRunnable && ((OrderedFutureRunnable<?>) task).getQueue() != this;
+        }
+
+        /**
+         * Unwraps the coalescing task from its slot, releasing the slot. Other tasks
+         * are returned as is.
+         * 
+         * @param task the task, as queued.
+         * @return the actual task.
+         */
+        private OrderedRunnable unwrap(OrderedRunnable task) {
+            if (task instanceof CoalescingSlot) {
+                CoalescingSlot slot = (CoalescingSlot) task;
+                coalescingSlots.remove(slot.token);
+                return slot.task;
+            }
+            return task;
+        }
+
+        /**
+         * Marks the cancelled task in the lane, to be skipped when it reaches the
+         * head, as taking it out of the middle of the lane would take time linear in
+         * the count of tasks queued, holding the lock of the stripe. It is no longer
+         * counted as queued right away. If it is already taken out for running, it
+         * will be skipped.
+         */
+        @Override
+        public void unlink(OrderedFutureRunnable<?> task) {
+            synchronized (stripe) {
+                if (task.getQueue() != this) {
+                    return;
+                }
+                Object token = coalescingTokenOf(task);
+                if (token != null) {
+                    CoalescingSlot slot = coalescingSlots.get(token);
+                    if (slot == null || slot.task != task) {
+                        // Superseded already.
+                        return;
+                    }
+                    coalescingSlots.remove(token);
+                    slot.task = null;
+                }
+                task.setQueue(null);
+                ++unlinkedCount;
+                stripe.taskDequeued();
+            }
+        }
+
+        /**
+         * Completes the futures of all the tasks queued in the lane with a rejection,
+         * and clears the lane. The tasks that were submitted without a future are reported to
+         * the exception handler. Must be called holding the lock of the stripe.
+         */
+        void reject() {
+            stripe.queuedTaskCount -= size() - uncountedCount;
+            for (OrderedRunnable task : tasks) {
+                if (!isUnlinked(task)) {
+                    reject(unwrap(task), "Executor has been shut down");
+                }
+            }
+            tasks.clear();
+            unlinkedCount = 0;
+            uncountedCount = 0;
+            if (stripe.waiters > 0) {
+                stripe.notifyAll();
+            }
+        }
+
+        /**
+         * Drops the oldest task queued in the lane, to make room for a new one. Must
+         * be called holding the lock of the stripe.
+         */
+        void dropOldest() {
+            reject(poll(), "Dropped as the queue of the key is full");
+        }
+
+        /**
+         * Completes the future of the task with a rejection. If the task was
+         * submitted without a future, the rejection is reported to the exception
+         * handler.
+         * 
+         * @param task   the task being rejected.
+         * @param reason the reason for rejection.
+         */
+        private void reject(OrderedRunnable task, String reason) {
+            if (task instanceof MultiKeyBarrier) {
+                // Rejected once, by the first of its lanes.
+                MultiKeyBarrier barrier = (MultiKeyBarrier) task;
+                if (!barrier.markRejected()) {
+                    return;
+                }
+                task = barrier.task;
+            }
+            tasksRejected(1);
+            if (task instanceof OrderedFutureRunnable) {
+                ((OrderedFutureRunnable<?>) task).reject(reason);
+            } else {
+                handleException((OrderedRunnable) actualTaskOf(task), new RejectedExecutionException(reason));
+            }
+        }
+
+        /**
+         * Runs the task. Tasks submitted with a future complete it with the outcome.
+         * For the rest, the exceptions are reported to the exception handler.
+         * 
+         * @param task the task to be run.
+         */
+        private void runTask(OrderedRunnable task) {
+            Object actualTask = actualTaskOf(task);
+            if (actualTask instanceof ExpiringOrderedRunnable
+                    && System.nanoTime() - ((ExpiringOrderedRunnable) actualTask).getDeadlineNanos() > 0) {
+                expire(task, (OrderedRunnable) actualTask);
+                return;
+            }
+            if (!metrics.isEnabled()) {
+                runSafely(task);
+                return;
+            }
+            long start = System.nanoTime();
+            long submitNanos = submitNanosOf(task);
+            runSafely(task);
+            metrics.taskCompleted(submitNanos == OrderedFutureRunnable.NOT_TIMED ? -1 : start - submitNanos,
+                    System.nanoTime() - start);
+        }
+
+        /**
+         * Skips the task whose deadline has passed, completing its future, if any,
+         * and reports it to the expiry handler.
+         * 
+         * @param task       the task, as queued.
+         * @param actualTask the task, as submitted.
+         */
+        private void expire(OrderedRunnable task, OrderedRunnable actualTask) {
+            if (task instanceof OrderedFutureRunnable && !((OrderedFutureRunnable<?>) task).expire()) {
+                // Cancelled already.
+                return;
+            }
+            expiredTaskCount.increment();
+            try {
+                expiryHandler.accept(actualTask);
+            } catch (Throwable t) {
+                logger.error("Expiry handler of " + name + " failed", t);
+            }
+        }
+
+        /**
+         * Runs the task, reporting the exception, if any, to the exception handler.
+         * Tasks with futures complete them with their exceptions, and never throw.
+         * 
+         * @param task the task to be run.
+         */
+        private void runSafely(OrderedRunnable task) {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                handleException((OrderedRunnable) actualTaskOf(task), t);
+            }
+        }
+
+        @Override
+        public void run() {
+            int quantumTasks = drainQuantumTasks;
+            long quantumNanos = drainQuantumNanos;
+            long start = quantumNanos == Long.MAX_VALUE ? 0 : System.nanoTime();
+            for (int executed = 0;; ++executed) {
+                OrderedRunnable task;
+                synchronized (stripe) {
+                    if (executed == 0) {
+                        ++stripe.runningLanes;
+                    }
+                    // If executor is shut down, set a future which throws
+                    // an exception on get() calls, for all pending tasks, and leave.
+                    if (stripe.checkShutdown() || isEmpty()) {
+                        --stripe.runningLanes;
+                        stripe.removeLane(this);
+                        return;
+                    }
+                    if (executed >= quantumTasks
+                            || (quantumNanos != Long.MAX_VALUE && System.nanoTime() - start >= quantumNanos)) {
+                        --stripe.runningLanes;
+                        markReady();
+                        break;
+                    }
+                    task = poll();
+                    if (task instanceof MultiKeyBarrier && !((MultiKeyBarrier) task).arrive()) {
+                        // The lane stays, holding up the key, until the last of the lanes
+                        // of the task reaches it, and lets this one go.
+                        --stripe.runningLanes;
+                        parked = true;
+                        return;
+                    }
+                }
+                if (task instanceof MultiKeyBarrier) {
+                    MultiKeyBarrier barrier = (MultiKeyBarrier) task;
+                    runTask(barrier.task);
+                    barrier.release(this);
+                    continue;
+                }
+                runTask(task);
+            }
+            // Quantum is over, and there are more tasks. Go back to the ready queue,
+            // behind the other keys of the same priority.
+            try {
+                handOver(this);
+            } catch (RejectedExecutionException ree) {
+                // The queued tasks are rejected already.
+            }
+        }
+
+    }
+
+    /**
+     * The holder of a queued coalescing task, in the queue of the lane. A newer
+     * task with the same coalescing token replaces the task held, and thus takes
+     * its place in the queue in constant time.
+     * 
+     * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+     *
+     */
+    private static class CoalescingSlot implements OrderedRunnable {
+
+        /**
+         * The coalescing token.
+         */
+        private final Object token;
+
+        /**
+         * The latest task with the token.
+         */
+        private OrderedRunnable task;
+
+        CoalescingSlot(Object token, OrderedRunnable task) {
+            this.token = token;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public Object getOrderingKey() {
+            return task.getOrderingKey();
+        }
+
+    }
+
+    /**
+     * An element of a stream, submitted as a task with its key.
+     * 
+     * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+     *
+     * @param <T> the type of the element.
+     */
+    private static class StreamElement<T> implements OrderedRunnable {
+
+        private final Object key;
+
+        private final T element;
+
+        private final Consumer<? super T> action;
+
+        StreamElement(Object key, T element, Consumer<? super T> action) {
+            this.key = key;
+            this.element = element;
+            this.action = action;
+        }
+
+        @Override
+        public void run() {
+            action.accept(element);
+        }
+
+        @Override
+        public Object getOrderingKey() {
+            return key;
+        }
+
+    }
+
+    /**
+     * The holder of a task submitted without a future, along with its submission
+     * time, while the metrics are enabled.
+     * 
+     * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+     *
+     */
+    private static class TimedRunnable implements OrderedRunnable {
+
+        /**
+         * The task as submitted.
+         */
+        private final OrderedRunnable task;
+
+        /**
+         * The time at which the task got submitted.
+         */
+        private final long submitNanos = System.nanoTime();
+
+        TimedRunnable(OrderedRunnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public Object getOrderingKey() {
+            return task.getOrderingKey();
+        }
+
+    }
+
+    /**
+     * A serialized task, to be appended to the journal as it is queued, holding
+     * the lock of its stripe.
+     * 
+     * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+     *
+     */
+    private class JournalAppend {
+
+        /**
+         * The journal.
+         */
+        private final TaskJournal journal;
+
+        /**
+         * The serialized task.
+         */
+        private final byte[] payload;
+
+        /**
+         * The future of the task.
+         */
+        private final OrderedFutureRunnable<?> future;
+
+        JournalAppend(TaskJournal journal, byte[] payload, OrderedFutureRunnable<?> future) {
+            this.journal = journal;
+            this.payload = payload;
+            this.future = future;
+        }
+
+        /**
+         * Appends the task, and marks its record once it finishes. Must be called
+         * holding the lock of the stripe of the task, right before it is queued.
+         */
+        void append() {
+            trackJournaled(future, journal.append(payload));
+        }
+
+    }
+
+    /**
+     * A task waiting in the timer, to be queued in the lane of its key when due.
+     * 
+     * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+     *
+     */
+    private class ScheduledDispatch implements Runnable {
+
+        /**
+         * The future of the task.
+         */
+        private final OrderedFutureRunnable<?> future;
+
+        /**
+         * The timeout in the timer, once scheduled.
+         */
+        private volatile TimingWheel.Timeout timeout;
+
+        ScheduledDispatch(OrderedFutureRunnable<?> future) {
+            this.future = future;
+        }
+
+        /**
+         * Puts the task in the timer.
+         * 
+         * @param delayNanos the delay after which the task becomes due.
+         * @throws RejectedExecutionException if the executor has been shut down.
+         */
+        void schedule(long delayNanos) {
+            if (shutDown) {
+                throw new RejectedExecutionException("Executor has been shut down");
+            }
+            scheduledDispatches.add(this);
+            timeout = TimingWheel.shared().schedule(this, delayNanos);
+            if (shutDown) {
+                // The shut down may have missed this task.
+                cancel();
+                future.reject();
+                throw new RejectedExecutionException("Executor has been shut down");
+            }
+            future.whenComplete((result, t) -> cancel());
+        }
+
+        /**
+         * Removes the task from the timer, if it is not yet due.
+         */
+        void cancel() {
+            scheduledDispatches.remove(this);
+            TimingWheel.Timeout t = timeout;
+            if (t != null) {
+                t.cancel();
+            }
+        }
+
+        /**
+         * Hands the task over to be queued, when it becomes due. Called by the
+         * timer thread, which is shared by all the executors, and hence must never
+         * wait on this one.
+         */
+        @Override
+        public void run() {
+            if (!scheduledDispatches.remove(this) || future.isDone()) {
+                return;
+            }
+            dueDispatches.add(this);
+            drainDueDispatchesLater();
+        }
+
+        /**
+         * Queues the due task in the lane of its key.
+         */
+        void dispatchDue() {
+            if (future.isDone()) {
+                return;
+            }
+            if (metrics.isEnabled()) {
+                future.setSubmitNanos(System.nanoTime());
+            }
+            try {
+                dispatch(future, false, null);
+            } catch (RejectedExecutionException ree) {
+                future.reject(ree.getMessage());
+            }
+        }
+
+    }
+
+    /**
+     * The state of a task executed at a fixed rate. Each execution gets a future
+     * of its own, and the next one is scheduled when it finishes.
+     * 
+     * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+     *
+     */
+    private class PeriodicSchedule {
+
+        /**
+         * The task to be executed.
+         */
+        private final OrderedRunnable task;
+
+        /**
+         * The period between the executions, in nanoseconds.
+         */
+        private final long periodNanos;
+
+        /**
+         * The future handed out to the caller.
+         */
+        private final CompletableFuture<Void> handle = new CompletableFuture<>();
+
+        /**
+         * The time at which the latest execution became due. Accessed by one
+         * execution at a time.
+         */
+        private long dueNanos;
+
+        /**
+         * The future of the latest execution.
+         */
+        private volatile OrderedFutureRunnable<Void> current;
+
+        PeriodicSchedule(OrderedRunnable task, long periodNanos) {
+            this.task = task;
+            this.periodNanos = periodNanos;
+            handle.whenComplete((result, t) -> {
+                OrderedFutureRunnable<Void> c = current;
+                if (c != null) {
+                    c.cancel(false);
+                }
+            });
+        }
+
+        /**
+         * Schedules the next execution.
+         * 
+         * @param nextDueNanos the time at which the execution becomes due.
+         * @throws RejectedExecutionException if the executor has been shut down.
+         */
+        void next(long nextDueNanos) {
+            dueNanos = nextDueNanos;
+            OrderedFutureRunnable<Void> future = newFuture(task, false);
+            current = future;
+            new ScheduledDispatch(future).schedule(nextDueNanos - System.nanoTime());
+            future.whenComplete((result, t) -> finished(t));
+            if (handle.isDone()) {
+                // Cancelled before the execution got published.
+                future.cancel(false);
+            }
+        }
+
+        /**
+         * Schedules the next execution, once the current one finishes.
+         * 
+         * @param t the exception with which the execution finished, if any.
+         */
+        private void finished(Throwable t) {
+            if (handle.isDone()) {
+                return;
+            }
+            if (t != null) {
+                handle.completeExceptionally(t);
+                return;
+            }
+            try {
+                next(dueNanos + periodNanos);
+            } catch (RejectedExecutionException ree) {
+                handle.completeExceptionally(ree);
+            }
+        }
+
+    }
+
+    /**
+     * The placeholder of a multi key task, queued in the lanes of all its keys, or
+     * of a task with a hierarchical key, queued in the lanes of its key and its
+     * descendants.
+     * 
+     * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+     *
+     */
+    private class MultiKeyBarrier implements OrderedRunnable {
+
+        /**
+         * The task, as submitted or wrapped.
+         */
+        private final OrderedRunnable task;
+
+        /**
+         * The hierarchical key of the task, null for a multi key task.
+         */
+        private final HierarchicalKey key;
+
+        /**
+         * The order of the task among the tasks with hierarchical keys of the stripe.
+         */
+        private final long sequence;
+
+        /**
+         * The lanes which wait for the task. All of them are in place before any of
+         * them reaches the barrier, except that a new lane of a descendant key can
+         * be added, under the lock of the stripe, until the task is finished.
+         */
+        private final List<Lane> lanes = new ArrayList<>(2);
+
+        /**
+         * The count of lanes yet to reach the barrier.
+         */
+        private final AtomicInteger pending = new AtomicInteger();
+
+        /**
+         * The lane in which the task is counted as queued, which is the first lane it
+         * got queued in, so that it is counted once.
+         */
+        private Lane countedLane;
+
+        /**
+         * Whether the task with the hierarchical key is finished. Guarded by the lock
+         * of the stripe.
+         */
+        private boolean released;
+
+        /**
+         * Whether the task got rejected.
+         */
+        private final AtomicBoolean rejected = new AtomicBoolean();
+
+        MultiKeyBarrier(OrderedRunnable task, HierarchicalKey key, long sequence) {
+            this.task = task;
+            this.key = key;
+            this.sequence = sequence;
+        }
+
+        /**
+         * Queues the barrier in the lane. Must be called holding the lock of the
+         * stripe of the lane.
+         * 
+         * @param lane the lane.
+         */
+        void append(Lane lane) {
+            lane.tasks.add(this);
+            if (countedLane == null) {
+                countedLane = lane;
+                ++lane.stripe.queuedTaskCount;
+            } else {
+                ++lane.uncountedCount;
+            }
+            lanes.add(lane);
+            pending.incrementAndGet();
+        }
+
+        /**
+         * Marks the arrival of a lane at the barrier. Must be called holding the lock
+         * of the stripe of the lane.
+         * 
+         * @return true if it is the last lane to arrive, which must run the task.
+         */
+        boolean arrive() {
+            return pending.decrementAndGet() == 0;
+        }
+
+        /**
+         * Returns true if all the lanes have reached the barrier, and the task is
+         * being run. Must be called holding the lock of the stripe.
+         * 
+         * @return true if the task is being run.
+         */
+        boolean isRunning() {
+            return pending.get() == 0 && !released;
+        }
+
+        /**
+         * Hands the other lanes, which are waiting at the barrier, back over to the
+         * pool, once the task is run.
+         * 
+         * @param last the lane which ran the task.
+         */
+        void release(Lane last) {
+            if (key != null) {
+                // No more lanes can be added after this.
+                synchronized (last.stripe) {
+                    last.stripe.released(this);
+                }
+            }
+            for (Lane lane : lanes) {
+                if (lane == last) {
+                    continue;
+                }
+                synchronized (lane.stripe) {
+                    lane.parked = false;
+                    lane.markReady();
+                }
+                try {
+                    handOver(lane);
+                } catch (RejectedExecutionException ree) {
+                    // The queued tasks are rejected already.
+                }
+            }
+        }
+
+        /**
+         * Marks the task as rejected.
+         * 
+         * @return true if it was not rejected already.
+         */
+        boolean markRejected() {
+            return rejected.compareAndSet(false, true);
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
 
         @Override
-        public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-            throw new ExecutionException("Executor has been shut down", new RejectedExecutionException());
+        public Object getOrderingKey() {
+            return task.getOrderingKey();
+        }
+
+    }
+
+    /**
+     * The entry of a hierarchical key in the index of its stripe.
+     * 
+     * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+     *
+     */
+    private static class HierarchyNode {
+
+        /**
+         * The lanes of the descendants of the key.
+         */
+        private final Set<Lane> descendantLanes = new HashSet<>();
+
+        /**
+         * The latest unfinished task of the key, if any.
+         */
+        private MultiKeyBarrier lastBarrier;
+
+        /**
+         * Returns true if the entry is no longer needed.
+         * 
+         * @return true if the key has neither descendants with lanes, nor unfinished
+         *         tasks.
+         */
+        boolean isIdle() {
+            return descendantLanes.isEmpty() && lastBarrier == null;
         }
 
-    };
+    }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,191 @@
+package com.realexan.executor.ordered;
+
+/**
+ * 
+ * The JMX view of the metrics of an <code>OrderedExecutor</code>. The counts
+ * are cumulative, from which the monitoring tools can derive the rates. The
+ * durations are in nanoseconds.
+ * 
+ * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+ */
+public interface OrderedExecutorMXBean {
+
+    /**
+     * Returns true if the counts and durations are being recorded.
+     * 
+     * @return true if the metrics are enabled.
+     */
+    boolean isEnabled();
+
+    /**
+     * Enables or disables the recording of the counts and durations.
+     * 
+     * @param enabled true to enable the metrics.
+     */
+    void setEnabled(boolean enabled);
+
+    /**
+     * Returns the count of tasks accepted for execution. The tasks rejected on
+     * submission are counted only as rejected.
+     * 
+     * @return the count of submitted tasks.
+     */
+    long getSubmittedTaskCount();
+
+    /**
+     * Returns the count of tasks which finished running, successfully or not.
+     * 
+     * @return the count of completed tasks.
+     */
+    long getCompletedTaskCount();
+
+    /**
+     * Returns the count of tasks rejected, either on submission, or while queued.
+     * 
+     * @return the count of rejected tasks.
+     */
+    long getRejectedTaskCount();
+
+    /**
+     * Returns the count of coalescing tasks superseded by newer ones.
+     * 
+     * @return the count of superseded tasks.
+     */
+    long getSupersededTaskCount();
+
+    /**
+     * Returns the count of expiring tasks skipped, as their turn came after their
+     * deadlines.
+     * 
+     * @return the count of expired tasks.
+     */
+    long getExpiredTaskCount();
+
+    /**
+     * Returns the count of tasks waiting behind the running tasks of their keys.
+     * 
+     * @return the count of queued tasks.
+     */
+    int getQueuedTaskCount();
+
+    /**
+     * Returns the count of distinct ordering keys which have tasks running or
+     * queued.
+     * 
+     * @return the count of active keys.
+     */
+    int getActiveKeyCount();
+
+    /**
+     * Returns the count of tasks queued for the ordering key with the most tasks
+     * queued.
+     * 
+     * @return the largest backlog of a key.
+     */
+    int getLargestKeyBacklog();
+
+    /**
+     * Returns the count of ordering keys waiting for a free worker.
+     * 
+     * @return the count of ready keys.
+     */
+    int getReadyKeyCount();
+
+    /**
+     * Returns the count of worker threads.
+     * 
+     * @return the pool size.
+     */
+    int getPoolSize();
+
+    /**
+     * Returns the count of times the adaptive worker count added a worker, as the
+     * ready keys waited longer than the target.
+     * 
+     * @return the count of increases of the pool.
+     */
+    long getWorkerIncreaseCount();
+
+    /**
+     * Returns the count of times the adaptive worker count let workers go, as the
+     * ready keys waited well below the target.
+     * 
+     * @return the count of decreases of the pool.
+     */
+    long getWorkerDecreaseCount();
+
+    /**
+     * Returns the count of times the adaptive worker count held on, though the
+     * ready keys waited longer than the target, as the last added worker didn't
+     * raise the throughput.
+     * 
+     * @return the count of holds of the pool.
+     */
+    long getWorkerHoldCount();
+
+    /**
+     * Returns the mean time the ready keys waited for a free worker, as sampled
+     * by the adaptive worker count on its last decision, or -1 if the worker count
+     * is fixed.
+     * 
+     * @return the mean ready wait.
+     */
+    long getReadyWaitMean();
+
+    /**
+     * Returns the mean time the tasks waited to start.
+     * 
+     * @return the mean queue wait.
+     */
+    long getQueueWaitMean();
+
+    /**
+     * Returns the median time the tasks waited to start.
+     * 
+     * @return the 50th percentile of queue wait.
+     */
+    long getQueueWaitP50();
+
+    /**
+     * Returns the 99th percentile of the time the tasks waited to start.
+     * 
+     * @return the 99th percentile of queue wait.
+     */
+    long getQueueWaitP99();
+
+    /**
+     * Returns the longest time a task waited to start.
+     * 
+     * @return the maximum queue wait.
+     */
+    long getQueueWaitMax();
+
+    /**
+     * Returns the mean time the tasks took to run.
+     * 
+     * @return the mean execution time.
+     */
+    long getExecutionTimeMean();
+
+    /**
+     * Returns the median time the tasks took to run.
+     * 
+     * @return the 50th percentile of execution time.
+     */
+    long getExecutionTimeP50();
+
+    /**
+     * Returns the 99th percentile of the time the tasks took to run.
+     * 
+     * @return the 99th percentile of execution time.
+     */
+    long getExecutionTimeP99();
+
+    /**
+     * Returns the longest time a task took to run.
+     * 
+     * @return the maximum execution time.
+     */
+    long getExecutionTimeMax();
+
+}
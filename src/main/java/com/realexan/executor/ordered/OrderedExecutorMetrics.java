@@ -0,0 +1,217 @@
+package com.realexan.executor.ordered;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 
+ * The metrics of an <code>OrderedExecutor</code>. The gauges, like the queued
+ * task count, are read from the executor when asked for. The counts and
+ * durations are recorded only while the metrics are enabled, and cost a single
+ * volatile read per task otherwise.
+ * <p>
+ * The queue wait of a task is the time from its submission till it starts
+ * running, and thus includes the time the producer was blocked for queue
+ * capacity, and the time its key waited for a free worker.
+ * 
+ * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+ */
+public class OrderedExecutorMetrics implements OrderedExecutorMXBean {
+
+    /**
+     * The executor being measured.
+     */
+    private final OrderedExecutor executor;
+
+    /**
+     * Whether the counts and durations are to be recorded.
+     */
+    private volatile boolean enabled;
+
+    private final LongAdder submittedTaskCount = new LongAdder();
+
+    private final LongAdder completedTaskCount = new LongAdder();
+
+    private final LongAdder rejectedTaskCount = new LongAdder();
+
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+
+    private final LatencyHistogram executionTime = new LatencyHistogram();
+
+    OrderedExecutorMetrics(OrderedExecutor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Records the submission of a task.
+     */
+    void taskSubmitted() {
+        submittedTaskCount.increment();
+    }
+
+    /**
+     * Records the rejection of tasks, either on submission, or while queued.
+     * 
+     * @param count the count of tasks rejected.
+     */
+    void tasksRejected(int count) {
+        rejectedTaskCount.add(count);
+    }
+
+    /**
+     * Records the run of a task.
+     * 
+     * @param queueWaitNanos     the time the task waited to start, or a negative
+     *                           value if not known.
+     * @param executionTimeNanos the time the task took to run.
+     */
+    void taskCompleted(long queueWaitNanos, long executionTimeNanos) {
+        completedTaskCount.increment();
+        if (queueWaitNanos >= 0) {
+            queueWait.record(queueWaitNanos);
+        }
+        executionTime.record(executionTimeNanos);
+    }
+
+    /**
+     * Returns the histogram of the times the tasks waited to start.
+     * 
+     * @return the queue wait histogram.
+     */
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    /**
+     * Returns the histogram of the times the tasks took to run.
+     * 
+     * @return the execution time histogram.
+     */
+    public LatencyHistogram getExecutionTime() {
+        return executionTime;
+    }
+
+    @Override
+    public long getSubmittedTaskCount() {
+        return submittedTaskCount.sum();
+    }
+
+    @Override
+    public long getCompletedTaskCount() {
+        return completedTaskCount.sum();
+    }
+
+    @Override
+    public long getRejectedTaskCount() {
+        return rejectedTaskCount.sum();
+    }
+
+    @Override
+    public long getSupersededTaskCount() {
+        return executor.getSupersededTaskCount();
+    }
+
+    @Override
+    public long getExpiredTaskCount() {
+        return executor.getExpiredTaskCount();
+    }
+
+    @Override
+    public int getQueuedTaskCount() {
+        return executor.getQueuedTaskCount();
+    }
+
+    @Override
+    public int getActiveKeyCount() {
+        return executor.getActiveKeyCount();
+    }
+
+    @Override
+    public int getLargestKeyBacklog() {
+        return executor.getLargestKeyBacklog();
+    }
+
+    @Override
+    public int getReadyKeyCount() {
+        return executor.getReadyKeyCount();
+    }
+
+    @Override
+    public int getPoolSize() {
+        return executor.getPoolSize();
+    }
+
+    @Override
+    public long getWorkerIncreaseCount() {
+        WorkerCountController controller = executor.getWorkerCountController();
+        return controller == null ? 0 : controller.getIncreaseCount();
+    }
+
+    @Override
+    public long getWorkerDecreaseCount() {
+        WorkerCountController controller = executor.getWorkerCountController();
+        return controller == null ? 0 : controller.getDecreaseCount();
+    }
+
+    @Override
+    public long getWorkerHoldCount() {
+        WorkerCountController controller = executor.getWorkerCountController();
+        return controller == null ? 0 : controller.getHoldCount();
+    }
+
+    @Override
+    public long getReadyWaitMean() {
+        WorkerCountController controller = executor.getWorkerCountController();
+        return controller == null ? -1 : controller.getLastWaitNanos();
+    }
+
+    @Override
+    public long getQueueWaitMean() {
+        return queueWait.getMean();
+    }
+
+    @Override
+    public long getQueueWaitP50() {
+        return queueWait.getPercentile(50);
+    }
+
+    @Override
+    public long getQueueWaitP99() {
+        return queueWait.getPercentile(99);
+    }
+
+    @Override
+    public long getQueueWaitMax() {
+        return queueWait.getMax();
+    }
+
+    @Override
+    public long getExecutionTimeMean() {
+        return executionTime.getMean();
+    }
+
+    @Override
+    public long getExecutionTimeP50() {
+        return executionTime.getPercentile(50);
+    }
+
+    @Override
+    public long getExecutionTimeP99() {
+        return executionTime.getPercentile(99);
+    }
+
+    @Override
+    public long getExecutionTimeMax() {
+        return executionTime.getMax();
+    }
+
+}
@@ -0,0 +1,40 @@
+package com.realexan.executor.ordered;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 
+ * The common contract of the ordered executors, which execute the
+ * <code>OrderedRunnable</code> instances with the same ordering key in series,
+ * in the order they were submitted, and those with different keys in parallel.
+ * The implementations differ in how the keys are scheduled on the threads, and
+ * can be swapped for one another to compare them.
+ * 
+ * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+ */
+public interface OrderedExecutorService {
+
+    /**
+     * Submits an <code>OrderedRunnable</code> to be executed.
+     * 
+     * @param item the task to be executed.
+     * @return a CompletableFuture which gets completed when the task finishes.
+     * @throws RejectedExecutionException if the executor has been shut down, or
+     *                                    cannot accept the task.
+     */
+    CompletableFuture<Void> submit(OrderedRunnable item);
+
+    /**
+     * Returns the count of tasks waiting behind the tasks of their keys.
+     * 
+     * @return the count of queued tasks.
+     */
+    int getQueuedTaskCount();
+
+    /**
+     * Shuts down the executor. The tasks which are yet to be started are rejected.
+     */
+    void shutDown();
+
+}
@@ -1,222 +1,323 @@
 package com.realexan.executor.ordered;
 
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
- * 
+ *
  * A <code>Future</code> type used in <code>OrderedExecutor</code>, as the
- * result of a <code>OrderedExecutor.submit()</code> call.
- * 
+ * result of a <code>OrderedExecutor.submit()</code> call. It carries the result
+ * of an <code>OrderedCallable</code>, or null for an
+ * <code>OrderedRunnable</code>.
+ * <p>
+ * It is a <code>CompletableFuture</code>, which gets completed by the worker
+ * thread as soon as the task finishes, so that the callers can either wait on it
+ * or compose further actions on it without blocking a thread.
+ * <p>
+ * The life cycle of the task is tracked by a lock free state machine: NEW ->
+ * RUNNING -> DONE, or NEW/RUNNING -> CANCELLED, or RUNNING -> INTERRUPTING ->
+ * INTERRUPTED, if the running thread is to be interrupted, or CANCELLED, if the
+ * task returned before the thread could be interrupted. No lock is held while
+ * the actual task runs, and hence <code>cancel</code>, <code>isDone</code> and
+ * <code>isCancelled</code> never wait for it.
+ *
  * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
- * 
+ *
+ * @param <V> the type of the result.
  */
-class OrderedFutureRunnable implements Future<Void>, OrderedRunnable {
+class OrderedFutureRunnable<V> extends CompletableFuture<V> implements OrderedRunnable {
+
+    private static final int NEW = 0;
+    private static final int RUNNING = 1;
+    private static final int DONE = 2;
+    private static final int CANCELLED = 3;
+    private static final int INTERRUPTING = 4;
+    private static final int INTERRUPTED = 5;
+
+    /**
+     * The submission time of a task which is not timed.
+     */
+    static final long NOT_TIMED = Long.MIN_VALUE;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<OrderedFutureRunnable> STATE = AtomicIntegerFieldUpdater
+            .newUpdater(OrderedFutureRunnable.class, "state");
+
+    /**
+     * The actual runnable, if the task is an <code>OrderedRunnable</code>. Let go
+     * once the task is cancelled before it started.
+     */
+    private volatile OrderedRunnable runnable;
 
     /**
-     * The actual runnable.
+     * The actual callable, if the task is an <code>OrderedCallable</code>. Let go
+     * once the task is cancelled before it started.
      */
-    private final OrderedRunnable runnable;
+    private volatile OrderedCallable<V> callable;
 
     /**
-     * Lock to guard the states.
+     * The state of the task.
      */
-    private final Object lock = new Object();
+    private volatile int state = NEW;
 
     /**
-     * Actual Future object, got as a result of submitting the runnable to an
-     * ExecutorService.
+     * The thread running the task, while it is running.
      */
-    private Future<?> future;
+    private volatile Thread runner;
 
     /**
-     * Flag denoting whether the task has been cancelled.
+     * The queue in which the task is waiting for its turn, if any.
      */
-    private boolean cancelled;
+    private volatile TaskQueue queue;
+
     /**
-     * Flag denoting whether the task has been finished.
+     * The time at which the task got submitted, by <code>System.nanoTime()</code>,
+     * if the executor is measuring the queue wait.
      */
-    private boolean done;
+    private long submitNanos = NOT_TIMED;
 
     /**
      * Constructor.
-     * 
+     *
      * @param runnable the <code>OrderedRunnable</code>.
      */
     OrderedFutureRunnable(OrderedRunnable runnable) {
         this.runnable = runnable;
+        this.callable = null;
     }
 
     /**
-     * Sets the actual <code>Future</code> object, got as a result of submitting the
-     * runnable to an ExecutorService.<br>
-     * Notifies the threads which are waiting on the lock in the <code>get</code>
-     * methods, so that now they can use the actual future object for getting the
-     * result.
-     * 
-     * @param f the <code>Future</code> object.
+     * Constructor.
+     *
+     * @param callable the <code>OrderedCallable</code>.
      */
-    void setFuture(Future<?> f) {
-        synchronized (lock) {
-            if (this.future != null) {
-                throw new IllegalArgumentException("Future can be set only once");
-            }
-            this.future = f;
-            lock.notifyAll();
-        }
+    OrderedFutureRunnable(OrderedCallable<V> callable) {
+        this.runnable = null;
+        this.callable = callable;
+    }
 
+    /**
+     * Sets the queue in which the task is waiting for its turn, so that the task
+     * can be unlinked from it on cancellation.
+     *
+     * @param queue the queue holding the task.
+     */
+    void setQueue(TaskQueue queue) {
+        this.queue = queue;
     }
 
     /**
-     * <code>OrderedExecutor</code> makes call to this method when execution of the
-     * <code>OrderedRunnable</code> is finished.
+     * Returns the queue in which the task is waiting for its turn.
+     *
+     * @return the queue holding the task, or null if it is not queued.
      */
-    void done() {
-        synchronized (lock) {
-            this.done = true;
-        }
+    TaskQueue getQueue() {
+        return queue;
     }
 
     /**
-     * Tries to cancel the task corresponding to this Future.
-     * <p>
-     * However, it just prevents the actual <code>OrderedRunnable.run()</code> call
-     * from being made, only if it is not actually submitted to an ExecutorService.
-     * As the <code>OrderedExecutor</code> relies on completion of a task to submit
-     * the queued items, this runnable is required to be submitted to an actual
-     * ExecutorService, and be done. Thus, cancelled tasks, which were queued while
-     * getting cancelled, too will be submitted to the ExecutorService. However, the
-     * actual run method of the task will be skipped.
-     * <p>
-     * Tasks that are actually submitted to the ExecutorService cannot be cancelled.
-     * Neither can they be interrupted, as the <code>OrderedExecutor</code> would
-     * need the thread to return, for submitting queued tasks. Thus the parameter
-     * <code>mayInterruptIfRunning</code> is unused.
+     * Records the time at which the task got submitted.
+     *
+     * @param submitNanos the submission time, by <code>System.nanoTime()</code>.
      */
-    @Override
-    public boolean cancel(boolean mayInterruptIfRunning) {
-        synchronized (lock) {
-            if (cancelled) {
-                return false;
-            }
-            return cancelled = true;
-        }
+    void setSubmitNanos(long submitNanos) {
+        this.submitNanos = submitNanos;
+    }
 
+    /**
+     * Returns the time at which the task got submitted.
+     *
+     * @return the submission time, or <code>NOT_TIMED</code>.
+     */
+    long getSubmitNanos() {
+        return submitNanos;
     }
 
     /**
-     * Returns true if the task got cancelled.
+     * Completes the future exceptionally with a
+     * <code>RejectedExecutionException</code>, as the executor got shut down
+     * before the task could be executed.
      */
-    @Override
-    public boolean isCancelled() {
-        synchronized (lock) {
-            return cancelled;
-        }
+    void reject() {
+        reject("Executor has been shut down");
     }
 
     /**
-     * Returns true if the task is done.
+     * Completes the future exceptionally with a
+     * <code>RejectedExecutionException</code>, as the task is not going to be
+     * executed.
+     *
+     * @param reason the reason for rejection.
      */
-    @Override
-    public boolean isDone() {
-        synchronized (lock) {
-            if (future != null) {
-                return future.isDone();
-            }
-            return cancelled || done;
+    void reject(String reason) {
+        if (STATE.compareAndSet(this, NEW, DONE)) {
+            completeExceptionally(new RejectedExecutionException(reason));
         }
-
     }
 
     /**
-     * Actual run of the <code>OrderedRunnable</code>. The
-     * <code>OrderedRunnable.run()</code> method will not be called if the task is
-     * already cancelled.
+     * Completes the future exceptionally with a
+     * <code>TaskSupersededException</code>, as a newer task took its place in the
+     * queue.
      */
-    @Override
-    public void run() {
-        synchronized (lock) {
-            if (!cancelled) {
-                runnable.run();
-            }
+    void supersede() {
+        if (STATE.compareAndSet(this, NEW, DONE)) {
+            completeExceptionally(new TaskSupersededException());
         }
+    }
 
+    /**
+     * Completes the future exceptionally with a <code>TaskExpiredException</code>,
+     * as its turn came after the deadline of the task.
+     *
+     * @return true if the task got expired, false if it was already done.
+     */
+    boolean expire() {
+        if (STATE.compareAndSet(this, NEW, DONE)) {
+            completeExceptionally(new TaskExpiredException());
+            return true;
+        }
+        return false;
     }
 
     /**
-     * Returns the ordering key for the <code>OrderedRunnable</code>.
+     * Returns the actual task.
+     *
+     * @return the actual runnable or callable, or null if the task got cancelled
+     *         before it started.
      */
-    @Override
-    public Object getOrderingKey() {
-        return runnable.getOrderingKey();
+    Object getTask() {
+        OrderedRunnable r = runnable;
+        return r != null ? r : callable;
     }
 
     /**
-     * Waits for the execution of the task, and returns null.
+     * Cancels the task corresponding to this Future.
      * <p>
-     * If the task is yet to be submitted to an executor service, this method waits
-     * on the internal lock, until it is submitted, and a <code>Future</code> is
-     * set. Once a future is available, it will wait on <code>get()</code> method if
-     * that future.
+     * If the task is yet to be started, it is unlinked from the queue right away,
+     * and will never run. The actual task is let go, so that whatever it holds
+     * doesn't wait in the queue till its turn. If it is running, the future is completed as cancelled
+     * right away, though the task keeps its ordering key until it returns. The
+     * thread running it is interrupted, if <code>mayInterruptIfRunning</code> is
+     * true. The interrupt status is cleared once the task returns, so that it
+     * doesn't leak to the next task run by the same thread.
      */
     @Override
-    public Void get() throws InterruptedException, ExecutionException {
-        synchronized (lock) {
-            // Task hasn't been submitted for execution yet. Go wait.
-            // Once it is submitted, a Future instance is set into this
-            // object, which will call notify on the lock.
-            if (future == null) {
-                lock.wait();
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        while (true) {
+            int current = state;
+            if (current == NEW) {
+                if (STATE.compareAndSet(this, NEW, CANCELLED)) {
+                    TaskQueue q = queue;
+                    if (q != null) {
+                        q.unlink(this);
+                    }
+                    // After the unlinking, which looks at the task.
+                    runnable = null;
+                    callable = null;
+                    return super.cancel(mayInterruptIfRunning);
+                }
+            } else if (current == RUNNING) {
+                if (STATE.compareAndSet(this, RUNNING, mayInterruptIfRunning ? INTERRUPTING : CANCELLED)) {
+                    if (mayInterruptIfRunning) {
+                        Thread t = runner;
+                        if (t != null) {
+                            t.interrupt();
+                            state = INTERRUPTED;
+                        } else {
+                            // The task returned already. The thread is not interrupted, and
+                            // any interrupt it has pending is not for the runner to clear.
+                            state = CANCELLED;
+                        }
+                    }
+                    return super.cancel(mayInterruptIfRunning);
+                }
+            } else {
+                return false;
             }
         }
-        // Future shouldn't be null here, if the wait was completed gracefully.
-        // Adding null check to avoid static violations.
-        if (future != null) {
-            future.get();
-        }
-        return null;
     }
 
     /**
-     * Waits for the execution of the task, and returns null.
-     * <p>
-     * If the task is yet to be submitted to an executor service, this method waits
-     * on the internal lock, until it is submitted, and a <code>Future</code> is
-     * set. Once a future is available, it will wait on <code>get()</code> method if
-     * that future.<br>
-     * Timeout behavior remains same as defined in the interface documentation.
+     * Actual run of the <code>OrderedRunnable</code>, which completes the future
+     * with the outcome. The <code>OrderedRunnable.run()</code> method will not be
+     * called if the task is cancelled, or the future is already completed.
      */
     @Override
-    public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-        long actualWaitInMillis = TimeUnit.MILLISECONDS.convert(timeout, unit);
-        long submitTime = now();
-        synchronized (lock) {
-            // Task hasn't been submitted for execution yet. Go wait.
-            // Once it is submitted, a Future instance is set into this
-            // object, which will call notify on the lock.
-            if (future == null) {
-                long timeToWait = Math.max(actualWaitInMillis - timeElapsedSince(submitTime), 0);
-                lock.wait(timeToWait);
-                if (timeElapsedSince(submitTime) >= actualWaitInMillis) {
-                    throw new TimeoutException("Wait timed out");
-                }
+    public void run() {
+        if (isDone()) {
+            return;
+        }
+        // The runner is set ahead of the state, so that a cancellation which sees
+        // the task running sees the thread to interrupt too.
+        runner = Thread.currentThread();
+        if (!STATE.compareAndSet(this, NEW, RUNNING)) {
+            runner = null;
+            return;
+        }
+        queue = null;
+        V result = null;
+        Throwable thrown = null;
+        try {
+            if (runnable != null) {
+                runnable.run();
+            } else {
+                result = callable.call();
             }
+        } catch (Throwable t) {
+            thrown = t;
         }
-        if (future != null) {
-            long timeToWait = Math.max(actualWaitInMillis - timeElapsedSince(submitTime), 0);
-            future.get(timeToWait, TimeUnit.MILLISECONDS);
+        runner = null;
+        if (STATE.compareAndSet(this, RUNNING, DONE)) {
+            if (thrown == null) {
+                complete(result);
+            } else {
+                completeExceptionally(thrown);
+            }
+            return;
+        }
+        // Got cancelled while running. Wait for the interrupt, if any, to be
+        // delivered, and clear it.
+        int current;
+        while ((current = state) == INTERRUPTING) {
+            Thread.yield();
+        }
+        if (current == INTERRUPTED) {
+            Thread.interrupted();
         }
-        return null;
     }
 
-    private static long now() {
-        return System.currentTimeMillis();
+    /**
+     * Returns the ordering key for the task.
+     */
+    @Override
+    public Object getOrderingKey() {
+        Object task = getTask();
+        if (task == null) {
+            // Cancelled before it started.
+            return null;
+        }
+        return task instanceof OrderedRunnable ? ((OrderedRunnable) task).getOrderingKey()
+                : ((OrderedCallable<?>) task).getOrderingKey();
     }
 
-    private static long timeElapsedSince(long since) {
-        return now() - since;
+    /**
+     * A queue which holds the tasks waiting for their turn, and which can unlink
+     * a task when it is cancelled.
+     *
+     * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+     *
+     */
+    interface TaskQueue {
+
+        /**
+         * Removes the cancelled task from the queue.
+         *
+         * @param task the cancelled task.
+         */
+        void unlink(OrderedFutureRunnable<?> task);
+
     }
 
 }
@@ -0,0 +1,253 @@
+package com.realexan.executor.ordered;
+
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.realexan.thread.NamedThreadFactory;
+
+/**
+ *
+ * An alternative to <code>OrderedExecutor</code>, where the ordering keys are
+ * hashed onto a fixed set of partitions, each drained by its own dedicated
+ * thread. All the tasks of an ordering key are thus executed by the same
+ * thread, in the order they were submitted, which keeps the state touched by
+ * the tasks of a key warm in the caches of that thread's core.
+ * <p>
+ * Each partition has a lock free multi producer queue, which is consumed only by
+ * its thread, and hence there is no hand off to a pool, and no per key
+ * bookkeeping. The thread parks when its queue is empty, and the producer which
+ * finds it parked wakes it up. The flip side is that the keys sharing a
+ * partition are executed in series, and a slow task holds up all of them.
+ * <p>
+ * The threads of the partitions live until <code>shutDown()</code> is called,
+ * which is required to release them, and to settle the tasks still queued. By
+ * default, they are daemon threads, so that an executor which is never shut
+ * down doesn't keep the JVM from exiting, though its queued tasks are then lost
+ * on exit. A thread factory can be given for threads of other kinds.
+ *
+ * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+ */
+public class PartitionedOrderedExecutor implements OrderedExecutorService {
+
+    /**
+     * The partitions, to which the ordering keys are hashed.
+     */
+    private final Partition[] partitions;
+
+    /**
+     * The count of tasks waiting in the partitions.
+     */
+    private final LongAdder queuedTaskCount = new LongAdder();
+
+    /**
+     * Whether the executor has been shut down.
+     */
+    private volatile boolean shutDown;
+
+    /**
+     * Constructor, which creates a partition per available processor.
+     */
+    public PartitionedOrderedExecutor(String name) {
+        this(name, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name           the name of the executor.
+     * @param partitionCount the count of partitions, each of which gets a thread of
+     *                       its own.
+     */
+    public PartitionedOrderedExecutor(String name, int partitionCount) {
+        this(name, partitionCount, daemonThreadFactory(name + "PartitionedOrderedExecutor-partition"));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name           the name of the executor.
+     * @param partitionCount the count of partitions, each of which gets a thread of
+     *                       its own.
+     * @param threadFactory  the factory of the threads of the partitions.
+     */
+    public PartitionedOrderedExecutor(String name, int partitionCount, ThreadFactory threadFactory) {
+        if (partitionCount <= 0) {
+            throw new IllegalArgumentException("Invalid partition count " + partitionCount);
+        }
+        Objects.requireNonNull(threadFactory, "The thread factory cannot be null");
+        this.partitions = new Partition[partitionCount];
+        for (int i = 0; i < partitionCount; ++i) {
+            partitions[i] = new Partition();
+        }
+        for (Partition partition : partitions) {
+            partition.thread = threadFactory.newThread(partition);
+            partition.thread.start();
+        }
+    }
+
+    /**
+     * Returns a factory of named daemon threads.
+     *
+     * @param namePrefix the prefix of the names of the threads.
+     * @return the thread factory.
+     */
+    private static ThreadFactory daemonThreadFactory(String namePrefix) {
+        ThreadFactory namedThreadFactory = new NamedThreadFactory(namePrefix);
+        return r -> {
+            Thread thread = namedThreadFactory.newThread(r);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Submits an <code>OrderedRunnable</code> to be executed, by the thread of the
+     * partition of its ordering key.
+     *
+     * @param item the task to be executed.
+     * @return a CompletableFuture which gets completed when the task finishes. It
+     *         can be waited on, or used to compose further actions.
+     * @throws RejectedExecutionException if the executor has been shut down.
+     */
+    @Override
+    public CompletableFuture<Void> submit(OrderedRunnable item) {
+        Objects.requireNonNull(item, "The task cannot be null");
+        Object orderingKey = Objects.requireNonNull(item.getOrderingKey(),
+                "The ordering key for the task cannot be null");
+        if (shutDown) {
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+        OrderedFutureRunnable<Void> future = new OrderedFutureRunnable<>(item);
+        Partition partition = partitions[partitionIndexOf(orderingKey)];
+        queuedTaskCount.increment();
+        partition.tasks.offer(future);
+        if (shutDown) {
+            // The thread may have drained the partition already. If the task is still
+            // there, it is for the producer to take it back.
+            if (partition.tasks.remove(future)) {
+                queuedTaskCount.decrement();
+                future.reject();
+                throw new RejectedExecutionException("Executor has been shut down");
+            }
+            return future;
+        }
+        partition.wakeUp();
+        return future;
+    }
+
+    /**
+     * Returns the index of the partition to which the ordering key is hashed.
+     *
+     * @param orderingKey the ordering key.
+     * @return the index of the partition of the key.
+     */
+    private int partitionIndexOf(Object orderingKey) {
+        int h = orderingKey.hashCode();
+        // Spread the higher bits, as the keys are mostly Strings.
+        h ^= (h >>> 16);
+        return (h & Integer.MAX_VALUE) % partitions.length;
+    }
+
+    /**
+     * Returns the count of tasks waiting in the partitions.
+     *
+     * @return the count of queued tasks.
+     */
+    @Override
+    public int getQueuedTaskCount() {
+        return queuedTaskCount.intValue();
+    }
+
+    /**
+     * Returns the count of partitions, which is also the count of threads.
+     *
+     * @return the count of partitions.
+     */
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    /**
+     * Shuts down the executor. The tasks being executed are finished, and those
+     * waiting in the partitions are rejected.
+     */
+    @Override
+    public void shutDown() {
+        shutDown = true;
+        for (Partition partition : partitions) {
+            LockSupport.unpark(partition.thread);
+        }
+    }
+
+    /**
+     * A partition, with its queue of tasks, and the thread draining it.
+     *
+     * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+     *
+     */
+    private class Partition implements Runnable {
+
+        /**
+         * The tasks yet to be executed, in the order of submission.
+         */
+        private final Queue<OrderedFutureRunnable<Void>> tasks = new ConcurrentLinkedQueue<>();
+
+        /**
+         * The thread draining the partition.
+         */
+        private volatile Thread thread;
+
+        /**
+         * Whether the thread is parked, or about to park, for want of tasks.
+         */
+        private volatile boolean idle;
+
+        /**
+         * Wakes up the thread, if it is parked. Called by a producer after queuing a
+         * task.
+         */
+        void wakeUp() {
+            if (idle) {
+                idle = false;
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!shutDown) {
+                OrderedFutureRunnable<Void> task = tasks.poll();
+                if (task != null) {
+                    queuedTaskCount.decrement();
+                    // Completes the future with the outcome, and never throws.
+                    task.run();
+                    // An interrupt of the task is not for the next one.
+                    Thread.interrupted();
+                    continue;
+                }
+                // Announce the idleness before the final check, so that a producer
+                // either sees the thread idle, or the thread sees its task.
+                idle = true;
+                // A pending interrupt would make the park return right away.
+                Thread.interrupted();
+                if (tasks.isEmpty() && !shutDown) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+            }
+            OrderedFutureRunnable<Void> task;
+            while ((task = tasks.poll()) != null) {
+                queuedTaskCount.decrement();
+                task.reject();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,30 @@
+package com.realexan.executor.ordered;
+
+/**
+ * 
+ * An <code>OrderedRunnable</code> with a priority. When the workers of an
+ * <code>OrderedExecutor</code> are all busy, the ordering keys which are ready
+ * to run are picked up in the order of the priority of the task at their
+ * heads, higher value first. The tasks of a key are still executed in the order
+ * they were submitted, irrespective of their priorities.
+ * <p>
+ * Tasks which are not <code>PrioritizedOrderedRunnable</code> have the priority
+ * <code>DEFAULT_PRIORITY</code>.
+ * 
+ * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+ */
+public interface PrioritizedOrderedRunnable extends OrderedRunnable {
+
+    /**
+     * The priority of the tasks which don't specify one.
+     */
+    int DEFAULT_PRIORITY = 0;
+
+    /**
+     * Returns the priority of this task. Higher value means higher priority.
+     * 
+     * @return the priority of this task.
+     */
+    int getPriority();
+
+}
@@ -0,0 +1,22 @@
+package com.realexan.executor.ordered;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * 
+ * The exception with which the future of an <code>ExpiringOrderedRunnable</code>
+ * is completed, when its turn comes after its deadline. As it is a
+ * <code>CancellationException</code>, such futures report themselves as
+ * cancelled.
+ * 
+ * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+ */
+public class TaskExpiredException extends CancellationException {
+
+    private static final long serialVersionUID = 1L;
+
+    public TaskExpiredException() {
+        super("Expired before its turn");
+    }
+
+}
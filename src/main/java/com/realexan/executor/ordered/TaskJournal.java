@@ -0,0 +1,816 @@
+package com.realexan.executor.ordered;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.realexan.thread.NamedThreadFactory;
+
+/**
+ *
+ * A journal of the tasks submitted to an <code>OrderedExecutor</code>, which are
+ * not yet finished, so that they can be replayed after a crash. The tasks are
+ * serialized into memory mapped segment files, and their records are marked
+ * once they finish.
+ * <p>
+ * An append reserves its space in the current segment with an atomic add, and
+ * copies the record into the mapped memory, without any lock, and without a
+ * system call. The records survive a crash of the process as soon as they are
+ * copied. A record is framed by a magic word and a checksum, so that a record
+ * left half written by a crash, in the space reserved for it, is stepped over
+ * on opening, and the records after it are still found. A background daemon
+ * thread flushes the segments written to since the last flush to the disk
+ * periodically, committing the records appended in the meantime as a group, and
+ * compacts the journal, by deleting the segments with no unfinished records,
+ * and moving the few unfinished records of sparse segments to the current one.
+ * <p>
+ * Every record carries a sequence, which orders the replay, and thus a task is
+ * replayed after the tasks submitted before it, irrespective of the segment it
+ * ends up in.
+ *
+ * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+ */
+public class TaskJournal implements Closeable {
+
+    /**
+     * The logger instance.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(TaskJournal.class);
+
+    /**
+     * The default size of a segment file, in bytes.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The default interval of flushing and compaction, in milliseconds.
+     */
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 100;
+
+    /**
+     * The prefix of the names of the segment files.
+     */
+    private static final String SEGMENT_PREFIX = "journal-";
+
+    /**
+     * The suffix of the names of the segment files.
+     */
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    /**
+     * The word at the start of every record, which marks where a record begins.
+     */
+    private static final int MAGIC = 0x4A524E4C;
+
+    /**
+     * The offset of the length of the payload in a record.
+     */
+    static final int LENGTH_OFFSET = 4;
+
+    /**
+     * The offset of the sequence in a record.
+     */
+    private static final int SEQUENCE_OFFSET = 8;
+
+    /**
+     * The offset of the checksum of the length, the sequence and the payload in a
+     * record.
+     */
+    private static final int CHECKSUM_OFFSET = 16;
+
+    /**
+     * The offset of the state in a record.
+     */
+    private static final int STATE_OFFSET = 20;
+
+    /**
+     * The size of the header of a record: the magic word, the length of the
+     * payload, the sequence, the checksum, and the state.
+     */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 1;
+
+    /**
+     * The alignment of the records, which are looked for only at its multiples
+     * after a half written one.
+     */
+    private static final int RECORD_ALIGNMENT = 8;
+
+    /**
+     * The state of a record of an unfinished task. A record being written has the
+     * state zero, which is the initial content of a segment file.
+     */
+    private static final byte PENDING = 1;
+
+    /**
+     * The state of a record of a finished task, or one which got moved.
+     */
+    private static final byte DONE = 2;
+
+    /**
+     * A segment whose unfinished records take less than this fraction of it is
+     * compacted.
+     */
+    private static final int SPARSE_SEGMENT_DIVISOR = 8;
+
+    /**
+     * The directory of the segment files.
+     */
+    private final Path directory;
+
+    /**
+     * The size of a segment file.
+     */
+    private final int segmentSize;
+
+    /**
+     * The sequence of the records.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * The segments, oldest first.
+     */
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+
+    /**
+     * The segment to which the records are appended.
+     */
+    private volatile Segment current;
+
+    /**
+     * The number of the next segment file. Guarded by the lock of this journal.
+     */
+    private int nextSegmentNumber;
+
+    /**
+     * Whether the journal is closed. Set holding the lock of this journal, which
+     * is held by the rolls too, so that no segment gets created once it is set.
+     */
+    private volatile boolean closed;
+
+    /**
+     * The unfinished records found on opening, in the order of their sequence,
+     * until they are taken for replay.
+     */
+    private List<Entry> recovered;
+
+    /**
+     * The lock which keeps the compactions apart.
+     */
+    private final Object compactionLock = new Object();
+
+    /**
+     * The thread which flushes and compacts the journal.
+     */
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * Opens the journal in the directory, with the default segment size and
+     * flush interval.
+     *
+     * @param directory the directory of the segment files, which is created if
+     *                  it doesn't exist.
+     * @return the journal.
+     * @throws IOException if the journal could not be opened.
+     */
+    public static TaskJournal open(Path directory) throws IOException {
+        return new TaskJournal(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_FLUSH_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Constructor, which opens the journal in the directory, and reads the
+     * unfinished records in the segment files found there.
+     *
+     * @param directory     the directory of the segment files, which is created
+     *                      if it doesn't exist.
+     * @param segmentSize   the size of a segment file, in bytes, which limits the
+     *                      size of a serialized task.
+     * @param flushInterval the interval of flushing and compaction.
+     * @param unit          the unit of <code>flushInterval</code>.
+     * @throws IOException if the journal could not be opened.
+     */
+    public TaskJournal(Path directory, int segmentSize, long flushInterval, TimeUnit unit) throws IOException {
+        if (segmentSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("Invalid segment size " + segmentSize);
+        }
+        if (flushInterval <= 0) {
+            throw new IllegalArgumentException("Invalid flush interval " + flushInterval);
+        }
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+        this.recovered = recover();
+        synchronized (this) {
+            current = newSegment();
+        }
+        ThreadFactory namedThreadFactory = new NamedThreadFactory(
+                "TaskJournal-" + directory.getFileName() + "-flusher");
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            // Doesn't keep the JVM alive, if the journal is not closed.
+            Thread thread = namedThreadFactory.newThread(r);
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushAndCompact, flushInterval, flushInterval, unit);
+    }
+
+    /**
+     * Reads the unfinished records of the existing segment files. A record found
+     * twice, as the process crashed while moving it, is kept once. A half written
+     * record, as the process crashed while appending it, is skipped, and the
+     * records are looked for after it.
+     *
+     * @return the unfinished records, in the order of their sequence.
+     * @throws IOException if a segment file could not be read.
+     */
+    private List<Entry> recover() throws IOException {
+        Map<Integer, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                try {
+                    files.put(Integer.parseInt(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring unknown file " + file);
+                }
+            }
+        }
+        Map<Long, Entry> entries = new TreeMap<>();
+        long maxSequence = -1;
+        for (Map.Entry<Integer, Path> file : files.entrySet()) {
+            Segment segment = new Segment(file.getValue(), (int) Files.size(file.getValue()));
+            segments.add(segment);
+            nextSegmentNumber = file.getKey() + 1;
+            int offset = 0;
+            int end = 0;
+            MappedByteBuffer buffer = segment.buffer;
+            while (offset + HEADER_SIZE <= segment.capacity) {
+                byte[] payload = readPayload(segment, offset);
+                if (payload == null) {
+                    offset += RECORD_ALIGNMENT;
+                    continue;
+                }
+                long recordSequence = buffer.getLong(offset + SEQUENCE_OFFSET);
+                maxSequence = Math.max(maxSequence, recordSequence);
+                if (buffer.get(offset + STATE_OFFSET) == PENDING) {
+                    Entry entry = new Entry(recordSequence);
+                    entry.segment = segment;
+                    entry.offset = offset;
+                    if (entries.containsKey(recordSequence)) {
+                        entry.complete();
+                    } else {
+                        try {
+                            entry.task = deserialize(payload);
+                            segment.live.add(entry);
+                            entries.put(recordSequence, entry);
+                        } catch (IOException | ClassNotFoundException e) {
+                            logger.error("Dropping unreadable record " + recordSequence + " in " + segment.path, e);
+                            entry.complete();
+                        }
+                    }
+                }
+                offset += recordSize(payload.length);
+                end = offset;
+            }
+            segment.position.set(end);
+        }
+        sequence.set(maxSequence + 1);
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Returns the unfinished tasks found on opening, in the order they were
+     * submitted, to be replayed. They are returned only once.
+     *
+     * @return the unfinished records.
+     */
+    synchronized List<Entry> takeRecovered() {
+        List<Entry> entries = recovered;
+        recovered = new ArrayList<>();
+        return entries;
+    }
+
+    /**
+     * Appends the task to the journal.
+     *
+     * @param task the task.
+     * @return the record of the task, to be completed once the task finishes.
+     * @throws UncheckedIOException     if the task could not be serialized.
+     * @throws IllegalArgumentException if the task doesn't fit in a segment.
+     * @throws IllegalStateException    if the journal is closed.
+     */
+    Entry append(Serializable task) {
+        return append(serialize(task));
+    }
+
+    /**
+     * Serializes the task, to be appended later.
+     *
+     * @param task the task.
+     * @return the payload of the record of the task.
+     * @throws UncheckedIOException     if the task could not be serialized.
+     * @throws IllegalArgumentException if the task doesn't fit in a segment.
+     */
+    byte[] serialize(Serializable task) {
+        byte[] payload;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(task);
+            }
+            payload = bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not serialize the task", e);
+        }
+        if (recordSize(payload.length) > segmentSize) {
+            throw new IllegalArgumentException("The task is too large for the journal: " + payload.length);
+        }
+        return payload;
+    }
+
+    /**
+     * Appends the serialized task to the journal. The sequence of the record is
+     * taken here, and hence the tasks which are to be replayed in an order must be
+     * appended in that order, as <code>OrderedExecutor</code> does, holding the
+     * lock of the stripe of the key, as it queues the task.
+     *
+     * @param payload the serialized task.
+     * @return the record of the task, to be completed once the task finishes.
+     * @throws IllegalStateException if the journal is closed.
+     */
+    Entry append(byte[] payload) {
+        if (closed) {
+            throw new IllegalStateException("The journal is closed");
+        }
+        Entry entry = new Entry(sequence.getAndIncrement());
+        synchronized (entry) {
+            write(entry, payload);
+        }
+        return entry;
+    }
+
+    /**
+     * Writes the record into the current segment. The magic word goes after the
+     * rest of the header and the payload, and the state goes last. Must be called
+     * holding the lock of the entry.
+     *
+     * @param entry   the entry of the record.
+     * @param payload the serialized task.
+     */
+    private void write(Entry entry, byte[] payload) {
+        int size = recordSize(payload.length);
+        int checksum = checksum(payload.length, entry.sequence, payload);
+        while (true) {
+            Segment segment = current;
+            segment.appending.incrementAndGet();
+            try {
+                if (segment.retired) {
+                    continue;
+                }
+                int offset = segment.position.getAndAdd(size);
+                if (offset > segment.capacity - size) {
+                    roll(segment);
+                    continue;
+                }
+                entry.segment = segment;
+                entry.offset = offset;
+                segment.live.add(entry);
+                MappedByteBuffer buffer = segment.buffer;
+                buffer.putInt(offset + LENGTH_OFFSET, payload.length);
+                buffer.putLong(offset + SEQUENCE_OFFSET, entry.sequence);
+                buffer.putInt(offset + CHECKSUM_OFFSET, checksum);
+                ByteBuffer target = buffer.duplicate();
+                target.position(offset + HEADER_SIZE);
+                target.put(payload);
+                buffer.putInt(offset, MAGIC);
+                buffer.put(offset + STATE_OFFSET, PENDING);
+                segment.dirty = true;
+                return;
+            } finally {
+                segment.appending.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Replaces the full segment with a new one, unless another thread did it
+     * already.
+     *
+     * @param full the full segment.
+     * @throws IllegalStateException if the journal is closed.
+     */
+    private synchronized void roll(Segment full) {
+        if (closed) {
+            // The append raced with the close.
+            throw new IllegalStateException("The journal is closed");
+        }
+        if (current != full) {
+            return;
+        }
+        try {
+            current = newSegment();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not create a journal segment", e);
+        }
+    }
+
+    /**
+     * Creates a new segment file. Must be called holding the lock of this
+     * journal.
+     *
+     * @return the new segment.
+     * @throws IOException if the file could not be created.
+     */
+    private Segment newSegment() throws IOException {
+        int number = nextSegmentNumber++;
+        Segment segment = new Segment(directory.resolve(SEGMENT_PREFIX + number + SEGMENT_SUFFIX), segmentSize);
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Returns the count of unfinished tasks in the journal.
+     *
+     * @return the count of unfinished tasks.
+     */
+    public int getPendingCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            count += segment.live.size();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the count of segment files in the journal.
+     *
+     * @return the count of segment files.
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Returns the count of segments written to since they were last flushed.
+     *
+     * @return the count of unflushed segments.
+     */
+    int getUnflushedSegmentCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            if (segment.dirty) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Flushes the segments written to since the last flush to the disk, and
+     * compacts the older segments. Runs periodically, and can be called to compact
+     * right away.
+     */
+    public void flushAndCompact() {
+        synchronized (compactionLock) {
+            compact();
+        }
+    }
+
+    /**
+     * Flushes and compacts. The records are moved, and flushed in their new
+     * place, before the segments they left are deleted. Must be called holding
+     * the compaction lock.
+     */
+    private void compact() {
+        try {
+            for (Segment segment : segments) {
+                if (segment == current) {
+                    continue;
+                }
+                long liveBytes = 0;
+                for (Entry entry : segment.live) {
+                    liveBytes += recordSize(entry.length());
+                }
+                if (liveBytes > 0 && liveBytes < segment.capacity / SPARSE_SEGMENT_DIVISOR) {
+                    for (Entry entry : segment.live) {
+                        move(entry);
+                    }
+                }
+            }
+            // Including the segments replaced by a roll since the last flush.
+            for (Segment segment : segments) {
+                if (segment.dirty) {
+                    // Cleared first, so that a write racing with the flush is flushed the next time.
+                    segment.dirty = false;
+                    segment.buffer.force();
+                }
+            }
+            for (Segment segment : segments) {
+                if (segment == current) {
+                    continue;
+                }
+                // Stop the stale appends to the segment, before checking it is empty.
+                segment.retired = true;
+                if (segment.appending.get() == 0 && segment.live.isEmpty()) {
+                    delete(segment);
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.error("Could not compact the journal in " + directory, e);
+        }
+    }
+
+    /**
+     * Moves the record to the current segment, if it is still unfinished. The
+     * record is written in the new place before it is marked in the old one, so
+     * that a crash in between leaves a duplicate, which is dropped on opening.
+     *
+     * @param entry the entry of the record.
+     */
+    private void move(Entry entry) {
+        synchronized (entry) {
+            if (entry.done) {
+                return;
+            }
+            Segment old = entry.segment;
+            int oldOffset = entry.offset;
+            byte[] payload = new byte[entry.length()];
+            ByteBuffer source = old.buffer.duplicate();
+            source.position(oldOffset + HEADER_SIZE);
+            source.get(payload);
+            write(entry, payload);
+            old.buffer.put(oldOffset + STATE_OFFSET, DONE);
+            old.dirty = true;
+            old.live.remove(entry);
+        }
+    }
+
+    /**
+     * Deletes the segment, which has no unfinished records.
+     *
+     * @param segment the segment.
+     */
+    private void delete(Segment segment) {
+        segments.remove(segment);
+        try {
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            logger.warn("Could not delete the journal segment " + segment.path, e);
+        }
+    }
+
+    /**
+     * Stops the flushing, and flushes all the segments to the disk. The records
+     * of the tasks finishing afterwards are still marked, but not flushed, and
+     * no more tasks can be appended.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Segment segment : segments) {
+            segment.buffer.force();
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                logger.warn("Could not close the journal segment " + segment.path, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the size of a record, with its header and padding.
+     *
+     * @param length the length of the payload.
+     * @return the size of the record.
+     */
+    static int recordSize(int length) {
+        return (HEADER_SIZE + length + RECORD_ALIGNMENT - 1) & -RECORD_ALIGNMENT;
+    }
+
+    /**
+     * Returns the checksum of a record.
+     *
+     * @param length   the length of the payload.
+     * @param sequence the sequence of the record.
+     * @param payload  the payload.
+     * @return the checksum.
+     */
+    private static int checksum(int length, long sequence, byte[] payload) {
+        CRC32 crc = new CRC32();
+        ByteBuffer header = ByteBuffer.allocate(4 + 8);
+        header.putInt(length).putLong(sequence).flip();
+        crc.update(header);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Reads the payload of the record at the offset, checking its frame.
+     *
+     * @param segment the segment.
+     * @param offset  the offset of the record.
+     * @return the payload, or null if there is no whole record at the offset.
+     */
+    private static byte[] readPayload(Segment segment, int offset) {
+        MappedByteBuffer buffer = segment.buffer;
+        if (buffer.getInt(offset) != MAGIC) {
+            return null;
+        }
+        int length = buffer.getInt(offset + LENGTH_OFFSET);
+        if (length <= 0 || length > segment.capacity - offset - HEADER_SIZE) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(offset + HEADER_SIZE);
+        source.get(payload);
+        if (checksum(length, buffer.getLong(offset + SEQUENCE_OFFSET), payload) != buffer
+                .getInt(offset + CHECKSUM_OFFSET)) {
+            return null;
+        }
+        return payload;
+    }
+
+    /**
+     * Reads the task of a record.
+     */
+    private static Object deserialize(byte[] payload) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+            return in.readObject();
+        }
+    }
+
+    /**
+     * The record of a task in the journal.
+     *
+     * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+     *
+     */
+    static final class Entry {
+
+        /**
+         * The sequence of the record.
+         */
+        private final long sequence;
+
+        /**
+         * The task, for a record found on opening.
+         */
+        private Object task;
+
+        /**
+         * The segment holding the record. Guarded by the lock of the entry.
+         */
+        private Segment segment;
+
+        /**
+         * The offset of the record in the segment. Guarded by the lock of the entry.
+         */
+        private int offset;
+
+        /**
+         * Whether the task is finished. Guarded by the lock of the entry.
+         */
+        private boolean done;
+
+        private Entry(long sequence) {
+            this.sequence = sequence;
+        }
+
+        /**
+         * Returns the task of a record found on opening.
+         *
+         * @return the task.
+         */
+        Object getTask() {
+            return task;
+        }
+
+        /**
+         * Returns the length of the payload of the record. Must be called holding
+         * the lock of the entry, or before it is published.
+         */
+        private int length() {
+            return segment.buffer.getInt(offset + LENGTH_OFFSET);
+        }
+
+        /**
+         * Marks the record as finished, so that it is not replayed.
+         */
+        synchronized void complete() {
+            if (done) {
+                return;
+            }
+            done = true;
+            task = null;
+            segment.buffer.put(offset + STATE_OFFSET, DONE);
+            segment.dirty = true;
+            segment.live.remove(this);
+        }
+
+    }
+
+    /**
+     * A segment file, mapped to the memory.
+     *
+     * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+     *
+     */
+    private static final class Segment {
+
+        /**
+         * The path of the file.
+         */
+        private final Path path;
+
+        /**
+         * The channel of the file.
+         */
+        private final FileChannel channel;
+
+        /**
+         * The mapped content of the file.
+         */
+        private final MappedByteBuffer buffer;
+
+        /**
+         * The size of the file.
+         */
+        private final int capacity;
+
+        /**
+         * The offset at which the next record goes.
+         */
+        private final AtomicInteger position = new AtomicInteger();
+
+        /**
+         * The count of appends in progress.
+         */
+        private final AtomicInteger appending = new AtomicInteger();
+
+        /**
+         * The entries of the unfinished records.
+         */
+        private final Set<Entry> live = ConcurrentHashMap.newKeySet();
+
+        /**
+         * Whether the segment is no longer appended to, as it is about to be deleted.
+         */
+        private volatile boolean retired;
+
+        /**
+         * Whether the segment has been written to since it was last flushed.
+         */
+        private volatile boolean dirty;
+
+        Segment(Path path, int capacity) throws IOException {
+            this.path = path;
+            this.capacity = capacity;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+    }
+
+}
@@ -0,0 +1,23 @@
+package com.realexan.executor.ordered;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * 
+ * The exception with which the future of a queued
+ * <code>CoalescingOrderedRunnable</code> is completed, when a newer task with the
+ * same ordering key and coalescing token takes its place. As it is a
+ * <code>CancellationException</code>, such futures report themselves as
+ * cancelled.
+ * 
+ * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+ */
+public class TaskSupersededException extends CancellationException {
+
+    private static final long serialVersionUID = 1L;
+
+    public TaskSupersededException() {
+        super("Superseded by a newer task");
+    }
+
+}
@@ -0,0 +1,257 @@
+package com.realexan.executor.ordered;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.realexan.thread.NamedThreadFactory;
+
+/**
+ *
+ * A hashed timing wheel, which fires timeouts with a precision of a tick, using
+ * a single thread for any count of timeouts. A timeout is hashed to the bucket
+ * of the tick it is due in, along with the count of rounds of the wheel it has
+ * to wait, and thus scheduling, cancelling and firing a timeout take constant
+ * time.
+ * <p>
+ * The timeouts are handed over to the thread through a lock free queue, and the
+ * buckets are touched only by the thread. The thread parks when there are no
+ * timeouts. The actions of the timeouts are run by the thread, and hence must
+ * be short and must not block.
+ *
+ * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+ *
+ */
+class TimingWheel implements Runnable {
+
+    /**
+     * The logger instance.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(TimingWheel.class);
+
+    /**
+     * The duration of a tick, in nanoseconds.
+     */
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * The count of buckets, which is a power of two.
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    /**
+     * The buckets of the timeouts, by the tick they are due in.
+     */
+    private final List<List<Timeout>> buckets = new ArrayList<>(WHEEL_SIZE);
+
+    /**
+     * The timeouts yet to be put into their buckets.
+     */
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The time from which the ticks are counted.
+     */
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * The current tick. Accessed only by the thread.
+     */
+    private long tick;
+
+    /**
+     * The count of timeouts in the buckets. Accessed only by the thread.
+     */
+    private int size;
+
+    /**
+     * Whether the thread is parked, or about to park, for want of timeouts.
+     */
+    private volatile boolean idle;
+
+    /**
+     * The thread running the wheel.
+     */
+    private final Thread thread;
+
+    /**
+     * The wheel shared by all the executors, created on first use.
+     *
+     * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+     *
+     */
+    private static class Shared {
+        private static final TimingWheel INSTANCE = new TimingWheel("OrderedExecutor-timer");
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name the name of the thread.
+     */
+    TimingWheel(String name) {
+        for (int i = 0; i < WHEEL_SIZE; ++i) {
+            buckets.add(new ArrayList<>());
+        }
+        thread = new NamedThreadFactory(name).newThread(this);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the wheel shared by all the executors.
+     *
+     * @return the shared wheel.
+     */
+    static TimingWheel shared() {
+        return Shared.INSTANCE;
+    }
+
+    /**
+     * Schedules the action to be run after the delay.
+     *
+     * @param action     the action, which must be short and must not block.
+     * @param delayNanos the delay in nanoseconds.
+     * @return the timeout, which can be cancelled.
+     */
+    Timeout schedule(Runnable action, long delayNanos) {
+        Timeout timeout = new Timeout(action, System.nanoTime() + Math.max(0, delayNanos));
+        pending.add(timeout);
+        if (idle) {
+            idle = false;
+            LockSupport.unpark(thread);
+        }
+        return timeout;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            transferPending();
+            if (size == 0) {
+                // Announce the idleness before the final check, so that a producer
+                // either sees the thread idle, or the thread sees its timeout.
+                idle = true;
+                if (pending.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+                // The buckets are empty, and hence the tick can skip to the clock.
+                tick = Math.max(tick, (System.nanoTime() - startNanos) / TICK_NANOS);
+                continue;
+            }
+            long sleepNanos = startNanos + (tick + 1) * TICK_NANOS - System.nanoTime();
+            if (sleepNanos > 0) {
+                LockSupport.parkNanos(this, sleepNanos);
+                continue;
+            }
+            expire(buckets.get((int) (tick & (WHEEL_SIZE - 1))));
+            ++tick;
+        }
+    }
+
+    /**
+     * Puts the pending timeouts into the buckets of the ticks they are due in.
+     */
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long dueTick = Math.max(tick, (timeout.deadlineNanos - startNanos + TICK_NANOS - 1) / TICK_NANOS);
+            timeout.rounds = (dueTick - tick) / WHEEL_SIZE;
+            buckets.get((int) (dueTick & (WHEEL_SIZE - 1))).add(timeout);
+            ++size;
+        }
+    }
+
+    /**
+     * Runs the actions of the timeouts in the bucket, which are due in this round,
+     * and drops the cancelled ones.
+     *
+     * @param bucket the bucket of the current tick.
+     */
+    private void expire(List<Timeout> bucket) {
+        int kept = 0;
+        for (int i = 0; i < bucket.size(); ++i) {
+            Timeout timeout = bucket.get(i);
+            if (timeout.cancelled) {
+                --size;
+            } else if (timeout.rounds <= 0) {
+                --size;
+                timeout.fire();
+            } else {
+                --timeout.rounds;
+                bucket.set(kept++, timeout);
+            }
+        }
+        bucket.subList(kept, bucket.size()).clear();
+    }
+
+    /**
+     * A scheduled action.
+     *
+     * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+     *
+     */
+    static class Timeout {
+
+        /**
+         * The action, which is released once fired or cancelled.
+         */
+        private volatile Runnable action;
+
+        /**
+         * The time at which the action is due.
+         */
+        private final long deadlineNanos;
+
+        /**
+         * The rounds of the wheel left, before the action is due.
+         */
+        private long rounds;
+
+        /**
+         * Whether the timeout has been cancelled.
+         */
+        private volatile boolean cancelled;
+
+        Timeout(Runnable action, long deadlineNanos) {
+            this.action = action;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * Cancels the timeout, if it is yet to be fired.
+         */
+        void cancel() {
+            cancelled = true;
+            action = null;
+        }
+
+        /**
+         * Runs the action, if it is not cancelled.
+         */
+        private void fire() {
+            Runnable a = action;
+            action = null;
+            if (a == null) {
+                return;
+            }
+            try {
+                a.run();
+            } catch (Throwable t) {
+                logger.error("Exception while running timeout", t);
+            }
+        }
+
+    }
+
+}
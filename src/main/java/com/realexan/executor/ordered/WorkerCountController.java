@@ -0,0 +1,283 @@
+package com.realexan.executor.ordered;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * A controller which resizes a pool of workers, within bounds, to keep the time
+ * the ready keys wait for a free worker around a target. It samples the wait
+ * and the throughput on every tick of a fixed interval, and adjusts the pool
+ * with additive increase and multiplicative decrease. That is, a worker is
+ * added on every tick the mean wait is above the target, and a quarter of the
+ * workers are let go on every tick it is below half the target.
+ * <p>
+ * The wait alone doesn't tell whether more workers would help, like when they
+ * are all contending for the same CPUs or a downstream resource. Hence, if the
+ * last added worker didn't raise the throughput, the controller holds on, and
+ * probes again on the next tick.
+ * <p>
+ * The samples are recorded by the workers, and the decisions are taken by the
+ * timer thread, which is the only one touching the state of the decisions.
+ *
+ * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+ *
+ */
+class WorkerCountController implements Runnable {
+
+    /**
+     * The interval between the decisions, in nanoseconds.
+     */
+    static final long SAMPLING_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * The decisions, that the controller can take on a tick.
+     */
+    private enum Decision {
+        INCREASE, DECREASE, HOLD
+    }
+
+    /**
+     * The pool being resized.
+     */
+    private final ThreadPoolExecutor pool;
+
+    /**
+     * The minimum count of workers.
+     */
+    private final int minWorkerCount;
+
+    /**
+     * The maximum count of workers.
+     */
+    private final int maxWorkerCount;
+
+    /**
+     * The mean wait of the ready keys aimed at, in nanoseconds.
+     */
+    private final long targetWaitNanos;
+
+    /**
+     * The timer running the ticks.
+     */
+    private final TimingWheel timer;
+
+    /**
+     * The sum of the waits of the keys, which got a worker since the last tick.
+     */
+    private final LongAdder waitNanos = new LongAdder();
+
+    /**
+     * The count of the keys, which got a worker since the last tick.
+     */
+    private final LongAdder runCount = new LongAdder();
+
+    /**
+     * The count of workers decided on.
+     */
+    private volatile int workerCount;
+
+    /**
+     * The mean wait of the ready keys, as of the last tick, in nanoseconds.
+     */
+    private volatile long lastWaitNanos;
+
+    /**
+     * The count of times the pool got increased, decreased, or held on when the
+     * throughput didn't rise, indexed by the ordinal of the decision.
+     */
+    private final LongAdder[] decisionCounts = new LongAdder[Decision.values().length];
+
+    /**
+     * The last decision taken. Accessed only by the timer thread.
+     */
+    private Decision lastDecision = Decision.HOLD;
+
+    /**
+     * The count of keys run in the last interval. Accessed only by the timer
+     * thread.
+     */
+    private long lastRunCount;
+
+    /**
+     * The timeout of the next tick.
+     */
+    private volatile TimingWheel.Timeout nextTick;
+
+    /**
+     * Whether the controller has been stopped.
+     */
+    private volatile boolean stopped;
+
+    /**
+     * Constructor.
+     *
+     * @param pool            the pool to be resized.
+     * @param minWorkerCount  the minimum count of workers.
+     * @param maxWorkerCount  the maximum count of workers.
+     * @param targetWaitNanos the mean wait of the ready keys aimed at, in
+     *                        nanoseconds.
+     * @param timer           the timer to run the ticks.
+     */
+    WorkerCountController(ThreadPoolExecutor pool, int minWorkerCount, int maxWorkerCount, long targetWaitNanos,
+            TimingWheel timer) {
+        if (minWorkerCount <= 0 || maxWorkerCount < minWorkerCount) {
+            throw new IllegalArgumentException(
+                    "Invalid worker count bounds " + minWorkerCount + " and " + maxWorkerCount);
+        }
+        if (targetWaitNanos <= 0) {
+            throw new IllegalArgumentException("Invalid target wait " + targetWaitNanos);
+        }
+        this.pool = pool;
+        this.minWorkerCount = minWorkerCount;
+        this.maxWorkerCount = maxWorkerCount;
+        this.targetWaitNanos = targetWaitNanos;
+        this.timer = timer;
+        for (int i = 0; i < decisionCounts.length; ++i) {
+            decisionCounts[i] = new LongAdder();
+        }
+        int current = pool.getCorePoolSize();
+        this.workerCount = Math.max(minWorkerCount, Math.min(maxWorkerCount, current));
+    }
+
+    /**
+     * Brings the pool within the bounds, and starts the ticks.
+     */
+    void start() {
+        resize(workerCount);
+        nextTick = timer.schedule(this, SAMPLING_INTERVAL_NANOS);
+    }
+
+    /**
+     * Stops the ticks. The pool is left at its current size.
+     */
+    void stop() {
+        stopped = true;
+        TimingWheel.Timeout tick = nextTick;
+        if (tick != null) {
+            tick.cancel();
+        }
+    }
+
+    /**
+     * Records that a ready key got a worker.
+     *
+     * @param wait the time the key waited for the worker, in nanoseconds.
+     */
+    void keyRun(long wait) {
+        waitNanos.add(wait);
+        runCount.increment();
+    }
+
+    @Override
+    public void run() {
+        if (stopped) {
+            return;
+        }
+        try {
+            tick();
+        } finally {
+            if (!stopped) {
+                nextTick = timer.schedule(this, SAMPLING_INTERVAL_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Takes the decision for the last interval.
+     */
+    private void tick() {
+        long runs = runCount.sumThenReset();
+        long wait = runs == 0 ? 0 : waitNanos.sumThenReset() / runs;
+        lastWaitNanos = wait;
+        int current = workerCount;
+        Decision decision;
+        int next = current;
+        if (wait > targetWaitNanos && current < maxWorkerCount) {
+            if (lastDecision == Decision.INCREASE && runs <= lastRunCount) {
+                decision = Decision.HOLD;
+            } else {
+                decision = Decision.INCREASE;
+                next = current + 1;
+            }
+        } else if (wait < targetWaitNanos / 2 && current > minWorkerCount) {
+            decision = Decision.DECREASE;
+            next = Math.max(minWorkerCount, current - Math.max(1, current / 4));
+        } else {
+            // Within the band, or at a bound.
+            lastDecision = Decision.HOLD;
+            lastRunCount = runs;
+            return;
+        }
+        decisionCounts[decision.ordinal()].increment();
+        lastDecision = decision;
+        lastRunCount = runs;
+        if (next != current) {
+            workerCount = next;
+            resize(next);
+        }
+    }
+
+    /**
+     * Resizes the pool, keeping the core size within the maximum size all along.
+     *
+     * @param size the new count of workers.
+     */
+    private void resize(int size) {
+        if (size > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(size);
+            pool.setCorePoolSize(size);
+        } else {
+            pool.setCorePoolSize(size);
+            pool.setMaximumPoolSize(size);
+        }
+    }
+
+    /**
+     * Returns the count of workers decided on.
+     *
+     * @return the count of workers.
+     */
+    int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * Returns the mean wait of the ready keys, as of the last decision.
+     *
+     * @return the mean wait in nanoseconds.
+     */
+    long getLastWaitNanos() {
+        return lastWaitNanos;
+    }
+
+    /**
+     * Returns the count of times workers were added.
+     *
+     * @return the count of increases.
+     */
+    long getIncreaseCount() {
+        return decisionCounts[Decision.INCREASE.ordinal()].sum();
+    }
+
+    /**
+     * Returns the count of times workers were let go.
+     *
+     * @return the count of decreases.
+     */
+    long getDecreaseCount() {
+        return decisionCounts[Decision.DECREASE.ordinal()].sum();
+    }
+
+    /**
+     * Returns the count of times the controller held on, as the last added worker
+     * didn't raise the throughput.
+     *
+     * @return the count of holds.
+     */
+    long getHoldCount() {
+        return decisionCounts[Decision.HOLD.ordinal()].sum();
+    }
+
+}
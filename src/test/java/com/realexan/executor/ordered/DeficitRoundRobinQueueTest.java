@@ -0,0 +1,42 @@
+package com.realexan.executor.ordered;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for DeficitRoundRobinQueue.
+ *
+ * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+ *
+ */
+public class DeficitRoundRobinQueueTest {
+
+    /**
+     * Charges a group a debt worth a trillion quanta, while another group waits.
+     * Verifies that the other group takes over right away, and that the group in
+     * debt gets its turn once it is the only one left, without going round after
+     * round.
+     */
+    @Test(timeout = 10_000)
+    public void testDeepDebt() {
+        DeficitRoundRobinQueue<String> queue = new DeficitRoundRobinQueue<>(group -> 1, 1);
+        queue.add("a", "a1");
+        queue.add("a", "a2");
+        Assert.assertEquals("a1", queue.poll());
+        queue.charge("a", 1_000_000_000_000L);
+        queue.add("b", "b1");
+        queue.add("b", "b2");
+        List<String> dispatched = new ArrayList<>();
+        String element;
+        while ((element = queue.poll()) != null) {
+            dispatched.add(element);
+            queue.charge(element.substring(0, 1), 1);
+        }
+        Assert.assertEquals(Arrays.asList("b1", "b2", "a2"), dispatched);
+    }
+
+}
@@ -0,0 +1,191 @@
+package com.realexan.executor.ordered;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for ForkJoinOrderedExecutor.
+ *
+ * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+ *
+ */
+public class ForkJoinOrderedExecutorTest {
+
+    private static class Task implements OrderedRunnable {
+
+        final String key;
+        final String producer;
+        final int sequence;
+        final List<Task> results;
+
+        Task(String key, int sequence, List<Task> results) {
+            this(key, key, sequence, results);
+        }
+
+        Task(String key, String producer, int sequence, List<Task> results) {
+            this.key = key;
+            this.producer = producer;
+            this.sequence = sequence;
+            this.results = results;
+        }
+
+        @Override
+        public void run() {
+            results.add(this);
+        }
+
+        @Override
+        public Object getOrderingKey() {
+            return key;
+        }
+    }
+
+    private static class ChainTask extends Task {
+
+        private final OrderedExecutorService executor;
+        private final CountDownLatch done;
+
+        ChainTask(OrderedExecutorService executor, String key, String chain, int sequence, List<Task> results,
+                CountDownLatch done) {
+            super(key, chain, sequence, results);
+            this.executor = executor;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            super.run();
+            if (sequence == 99) {
+                done.countDown();
+            } else {
+                executor.submit(new ChainTask(executor, key, producer, sequence + 1, results, done));
+            }
+        }
+    }
+
+    /**
+     * 8 producer threads submitting tasks for 4 keys, each key shared by two
+     * producers. Verifies that the tasks of each producer are executed in the
+     * order they were submitted.
+     */
+    @Test
+    public void testOrdering() throws Exception {
+        ForkJoinOrderedExecutor executor = new ForkJoinOrderedExecutor("Test");
+        List<Task> results = Collections.synchronizedList(new ArrayList<>());
+        List<Future<?>> futures = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> producers = new ArrayList<>();
+        try {
+            for (int p = 0; p < 8; ++p) {
+                String key = "key-" + (p % 4);
+                String producer = "producer-" + p;
+                Thread t = new Thread(() -> {
+                    for (int i = 0; i < 5000; ++i) {
+                        futures.add(executor.submit(new Task(key, producer, i, results)));
+                    }
+                });
+                producers.add(t);
+                t.start();
+            }
+            for (Thread t : producers) {
+                t.join();
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+            Assert.assertEquals(40000, results.size());
+            for (int p = 0; p < 8; ++p) {
+                String producer = "producer-" + p;
+                List<Integer> sequences = results.stream().filter(t -> t.producer.equals(producer))
+                        .map(t -> t.sequence)
+                        .collect(Collectors.toList());
+                Assert.assertEquals(5000, sequences.size());
+                for (int i = 0; i < sequences.size(); ++i) {
+                    Assert.assertEquals(i, sequences.get(i).intValue());
+                }
+            }
+            // The futures complete before the mailboxes get retired.
+            for (int i = 0; i < 100 && executor.getExecutingTaskCount() > 0; ++i) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(0, executor.getQueuedTaskCount());
+            Assert.assertEquals(0, executor.getExecutingTaskCount());
+        } finally {
+            executor.shutDown();
+        }
+    }
+
+    /**
+     * Tasks submitting the next task of a chain, for 100 chains, from within the
+     * worker threads. Verifies that each chain is executed in order, as the
+     * mailboxes get forked by the workers instead of going through the pool's
+     * submission queues.
+     */
+    @Test
+    public void testSubmitFromWorker() throws Exception {
+        OrderedExecutorService executor = new ForkJoinOrderedExecutor("Test", 4);
+        List<Task> results = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(100);
+        try {
+            for (int c = 0; c < 100; ++c) {
+                String key = "key-" + (c % 10);
+                String chain = "chain-" + c;
+                executor.submit(new ChainTask(executor, key, chain, 0, results, done));
+            }
+            Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(10000, results.size());
+            for (int c = 0; c < 100; ++c) {
+                String chain = "chain-" + c;
+                List<Integer> sequences = results.stream().filter(t -> t.producer.equals(chain))
+                        .map(t -> t.sequence)
+                        .collect(Collectors.toList());
+                for (int i = 0; i < sequences.size(); ++i) {
+                    Assert.assertEquals(i, sequences.get(i).intValue());
+                }
+            }
+        } finally {
+            executor.shutDown();
+        }
+    }
+
+    /**
+     * Shuts down the executor while tasks are queued. Verifies that every task is
+     * either executed or rejected, and that no Future.get() gets stuck.
+     */
+    @Test
+    public void testShutdown() throws Exception {
+        ForkJoinOrderedExecutor executor = new ForkJoinOrderedExecutor("Test");
+        List<Task> results = Collections.synchronizedList(new ArrayList<>());
+        List<Future<?>> futures = new ArrayList<>();
+        AtomicInteger rejected = new AtomicInteger();
+        for (int i = 0; i < 10000; ++i) {
+            futures.add(executor.submit(new Task("key-" + (i % 10), i, results)));
+        }
+        executor.shutDown();
+        try {
+            executor.submit(new Task("key", 0, results));
+            Assert.fail();
+        } catch (RejectedExecutionException ree) {
+        }
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+                rejected.incrementAndGet();
+            }
+        }
+        Assert.assertEquals(10000, results.size() + rejected.get());
+    }
+
+}
@@ -1,17 +1,35 @@
 package com.realexan.executor.ordered;
 
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -37,7 +55,7 @@ public class OrderedExecutorTest {
 
         private boolean orderedExecutorTest = true;
 
-        private OrderedExecutor executor = new OrderedExecutor("Test");
+        private final OrderedExecutor executor;
 
         private ThreadPoolExecutor regularExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
                 new SynchronousQueue<Runnable>());
@@ -48,6 +66,14 @@ public class OrderedExecutorTest {
 
         private List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
 
+        Stats() {
+            this(new OrderedExecutor("Test"));
+        }
+
+        Stats(OrderedExecutor executor) {
+            this.executor = executor;
+        }
+
         void start() {
             startTime = System.currentTimeMillis();
         }
@@ -184,6 +210,1262 @@ public class OrderedExecutorTest {
 
     }
 
+    /**
+     * 4 threads submitting 25000 tasks each, sharing a handful of keys, so that the
+     * lanes build up a deep backlog. Verifies the order within each key, and that
+     * the lanes are cleared once all the tasks are done.
+     */
+    @Test
+    public void testOrderingWithDeepBacklog() {
+        Stats stats = new Stats();
+        try {
+            stats.orderedExecutorTest = true;
+            String[] keys = { "a", "b", "c", "d" };
+            for (String key : keys) {
+                runInSingleThread(stats, 25000, key, 0, true);
+            }
+            stats.waitForAllDone();
+            for (String key : keys) {
+                List<String> actualOrderList = stats.results.stream().filter(d -> d.orderingKey.equals(key))
+                        .map(d -> d.name).collect(Collectors.toList());
+                Assert.assertEquals(25000, actualOrderList.size());
+                for (int i = 0; i < actualOrderList.size(); ++i) {
+                    Assert.assertEquals(key + "--" + i, actualOrderList.get(i));
+                }
+            }
+            // The futures complete before the lanes get removed.
+            for (int i = 0; i < 100 && stats.executor.getExecutingTaskCount() > 0; ++i) {
+                sleep(10);
+            }
+            Assert.assertEquals(0, stats.executor.getQueuedTaskCount());
+            Assert.assertEquals(0, stats.executor.getExecutingTaskCount());
+        } finally {
+            stats.print("testOrderingWithDeepBacklog");
+            stats.executor.shutDown();
+            stats.regularExecutor.shutdown();
+            stats.verifyCount(true);
+        }
+    }
+
+    /**
+     * 100 threads submitting 100 tasks each, with a key per thread, in an ordered
+     * executor with 8 stripes. Verifies the order within each key, and that the
+     * per-stripe counts add up to the aggregate counts while tasks are queued.
+     */
+    @Test
+    public void testStripedOrdering() {
+        Stats stats = new Stats(new OrderedExecutor("Test", 8));
+        try {
+            stats.orderedExecutorTest = true;
+            Assert.assertEquals(8, stats.executor.getStripeCount());
+            String[] keys = new String[100];
+            for (int i = 0; i < keys.length; ++i) {
+                keys[i] = "key-" + i;
+                runInSingleThread(stats, 100, keys[i], 0, true);
+            }
+            stats.waitForSubmission();
+            int queued = 0;
+            for (int i = 0; i < stats.executor.getStripeCount(); ++i) {
+                queued += stats.executor.getQueuedTaskCount(i);
+            }
+            // Counts only go down once the submissions are over.
+            Assert.assertTrue(queued >= stats.executor.getQueuedTaskCount());
+            stats.waitForExecutionCompletion();
+            for (String key : keys) {
+                List<String> actualOrderList = stats.results.stream().filter(d -> d.orderingKey.equals(key))
+                        .map(d -> d.name).collect(Collectors.toList());
+                Assert.assertEquals(100, actualOrderList.size());
+                for (int i = 0; i < actualOrderList.size(); ++i) {
+                    Assert.assertEquals(key + "--" + i, actualOrderList.get(i));
+                }
+            }
+        } finally {
+            stats.print("testStripedOrdering");
+            stats.executor.shutDown();
+            stats.regularExecutor.shutdown();
+            stats.verifyCount(true);
+        }
+    }
+
+    /**
+     * 100 threads submitting 100 tasks each, with a key per task, in an ordered
+     * executor with 4 workers. Verifies that the pool doesn't grow beyond 4 threads
+     * and the order of the tasks in the sample ordering test still holds.
+     */
+    @Test
+    public void testBoundedWorkers() {
+        Stats stats = new Stats(new OrderedExecutor("Test", 1, 4));
+        try {
+            stats.orderedExecutorTest = true;
+            for (int i = 0; i < 100; ++i) {
+                runInSingleThread(stats, 100, "key-" + i, 0, false);
+            }
+            DelayedOrderedRunnable tests[] = { new DelayedOrderedRunnable(stats, "1", 1, "a"),
+                    new DelayedOrderedRunnable(stats, "2", 0, "a"), new DelayedOrderedRunnable(stats, "3", 1, "b"),
+                    new DelayedOrderedRunnable(stats, "4", 0, "b"), new DelayedOrderedRunnable(stats, "5", 0, "b") };
+            stats.exe(tests);
+            stats.waitForSubmission();
+            Assert.assertTrue(stats.executor.getPoolSize() <= 4);
+            stats.waitForExecutionCompletion();
+            Assert.assertTrue(stats.executor.getPoolSize() <= 4);
+            verifyOrder(stats, new String[] { "1", "2" });
+            verifyOrder(stats, new String[] { "3", "4", "5" });
+        } finally {
+            stats.print("testBoundedWorkers");
+            stats.executor.shutDown();
+            stats.regularExecutor.shutdown();
+            stats.verifyCount(true);
+        }
+    }
+
+    /**
+     * Blocks the single worker of a bounded pool on a key, while another key waits
+     * for it. Verifies that only the key held by the worker counts as executing,
+     * while both count as active.
+     */
+    @Test
+    public void testExecutingTaskCount() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor("Test", 1, 1);
+        try {
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            executor.submit(new TestOrderedRunnable("a", () -> {
+                started.countDown();
+                await(release);
+            }));
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            CompletableFuture<Void> waiting = executor.submit(new TestOrderedRunnable("b", () -> {
+            }));
+            Assert.assertEquals(1, executor.getReadyKeyCount());
+            Assert.assertEquals(1, executor.getExecutingTaskCount());
+            Assert.assertEquals(2, executor.getActiveKeyCount());
+            release.countDown();
+            waiting.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutDown();
+        }
+    }
+
+    /**
+     * Queues 999 tasks for a key behind a blocked task, with a drain quantum of
+     * 100 tasks. Verifies that the worker running the key changes only at the
+     * boundaries of the quanta. Then, with a single worker and a quantum of 10 tasks, verifies that
+     * two busy keys take turns.
+     */
+    @Test
+    public void testDrainQuantum() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor("Test");
+        OrderedExecutor singleWorkerExecutor = new OrderedExecutor("Test", 1, 1);
+        try {
+            executor.setDrainQuantum(100, 1, TimeUnit.MINUTES);
+            CountDownLatch latch = new CountDownLatch(1);
+            List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+            List<Future<?>> futures = new ArrayList<>();
+            futures.add(executor.submit(new TestOrderedRunnable("a", () -> {
+                threads.add(Thread.currentThread());
+                await(latch);
+            })));
+            for (int i = 1; i < 1000; ++i) {
+                futures.add(executor.submit(new TestOrderedRunnable("a", () -> threads.add(Thread.currentThread()))));
+            }
+            latch.countDown();
+            for (Future<?> f : futures) {
+                f.get();
+            }
+            Assert.assertEquals(1000, threads.size());
+            for (int i = 1; i < threads.size(); ++i) {
+                if (threads.get(i) != threads.get(i - 1)) {
+                    Assert.assertEquals(0, i % 100);
+                }
+            }
+
+            singleWorkerExecutor.setDrainQuantum(10, 1, TimeUnit.MINUTES);
+            CountDownLatch singleWorkerLatch = new CountDownLatch(1);
+            List<String> results = Collections.synchronizedList(new ArrayList<>());
+            futures.clear();
+            futures.add(singleWorkerExecutor.submit(new TestOrderedRunnable("x", () -> await(singleWorkerLatch))));
+            for (int i = 0; i < 100; ++i) {
+                futures.add(singleWorkerExecutor.submit(new TestOrderedRunnable("a", () -> results.add("a"))));
+                futures.add(singleWorkerExecutor.submit(new TestOrderedRunnable("b", () -> results.add("b"))));
+            }
+            singleWorkerLatch.countDown();
+            for (Future<?> f : futures) {
+                f.get();
+            }
+            Assert.assertEquals(200, results.size());
+            for (int i = 0; i < results.size(); i += 10) {
+                Assert.assertEquals(i % 20 == 0 ? "a" : "b", results.get(i));
+                Assert.assertEquals(1, new HashSet<>(results.subList(i, i + 10)).size());
+            }
+        } finally {
+            executor.shutDown();
+            singleWorkerExecutor.shutDown();
+        }
+    }
+
+    /**
+     * Submits batches of 500 tasks spread over 5 keys, in an ordered executor with
+     * 4 stripes. Verifies that the futures are returned in the batch order, and the
+     * tasks of each key are executed in the batch order, across batches.
+     */
+    @Test
+    public void testSubmitAll() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor("Test", 4);
+        try {
+            List<Integer> results = Collections.synchronizedList(new ArrayList<>());
+            List<Future<?>> futures = new ArrayList<>();
+            for (int b = 0; b < 10; ++b) {
+                List<TestOrderedRunnable> batch = new ArrayList<>();
+                for (int i = 0; i < 500; ++i) {
+                    int sequence = b * 500 + i;
+                    batch.add(new TestOrderedRunnable("key-" + (i % 5), () -> results.add(sequence)));
+                }
+                List<CompletableFuture<Void>> batchFutures = executor.submitAll(batch);
+                Assert.assertEquals(batch.size(), batchFutures.size());
+                for (int i = 0; i < batch.size(); ++i) {
+                    Assert.assertEquals(batch.get(i).getOrderingKey(),
+                            ((OrderedFutureRunnable) batchFutures.get(i)).getOrderingKey());
+                }
+                futures.addAll(batchFutures);
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+            Assert.assertEquals(5000, results.size());
+            for (int k = 0; k < 5; ++k) {
+                int key = k;
+                List<Integer> sequences = results.stream().filter(sequence -> sequence % 5 == key)
+                        .collect(Collectors.toList());
+                for (int i = 1; i < sequences.size(); ++i) {
+                    Assert.assertTrue(sequences.get(i - 1) < sequences.get(i));
+                }
+            }
+        } finally {
+            executor.shutDown();
+        }
+    }
+
+    /**
+     * Executes tasks without futures, every tenth of which throws. Verifies the
+     * order of execution, and that the exceptions reach the exception handler.
+     */
+    @Test
+    public void testExecute() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor("Test");
+        try {
+            List<Integer> results = Collections.synchronizedList(new ArrayList<>());
+            List<Throwable> exceptions = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch done = new CountDownLatch(1);
+            executor.setExceptionHandler((task, t) -> exceptions.add(t));
+            for (int i = 0; i < 1000; ++i) {
+                int sequence = i;
+                executor.execute(new TestOrderedRunnable("a", () -> {
+                    results.add(sequence);
+                    if (sequence % 10 == 0) {
+                        throw new IllegalStateException("Failed " + sequence);
+                    }
+                }));
+            }
+            executor.execute(new TestOrderedRunnable("a", done::countDown));
+            Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(1000, results.size());
+            for (int i = 0; i < results.size(); ++i) {
+                Assert.assertEquals(i, results.get(i).intValue());
+            }
+            Assert.assertEquals(100, exceptions.size());
+            Assert.assertTrue(exceptions.stream().allMatch(t -> t instanceof IllegalStateException));
+        } finally {
+            executor.shutDown();
+        }
+    }
+
+    /**
+     * Verifies that the futures returned by submit can be composed, time out
+     * without waiting for the task to start, and carry the exception thrown by the
+     * task.
+     */
+    @Test
+    public void testCompletableFuture() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor("Test");
+        try {
+            CountDownLatch latch = new CountDownLatch(1);
+            executor.submit(new TestOrderedRunnable("a", () -> await(latch)));
+            CompletableFuture<Void> queued = executor.submit(new TestOrderedRunnable("a", () -> {
+            }));
+            CompletableFuture<String> composed = queued.thenApply(v -> "done");
+            long start = System.nanoTime();
+            try {
+                queued.get(500, TimeUnit.MICROSECONDS);
+                Assert.fail();
+            } catch (TimeoutException te) {
+            }
+            Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+            Assert.assertFalse(composed.isDone());
+            latch.countDown();
+            Assert.assertEquals("done", composed.get(10, TimeUnit.SECONDS));
+
+            CompletableFuture<Void> failed = executor.submit(new TestOrderedRunnable("b", () -> {
+                throw new IllegalStateException();
+            }));
+            try {
+                failed.get();
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        } finally {
+            executor.shutDown();
+        }
+    }
+
+    /**
+     * Verifies that cancelling a queued task unlinks it from its lane right away,
+     * and that cancelling a running task with interruption interrupts it, without
+     * the interrupt leaking to the next task of the key.
+     */
+    @Test
+    public void testCancel() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor("Test");
+        try {
+            executor.setDrainQuantum(100, 1, TimeUnit.MINUTES);
+            CountDownLatch started = new CountDownLatch(1);
+            AtomicInteger interrupted = new AtomicInteger();
+            CompletableFuture<Void> running = executor.submit(new TestOrderedRunnable("a", () -> {
+                started.countDown();
+                try {
+                    Thread.sleep(60_000);
+                } catch (InterruptedException e) {
+                    interrupted.incrementAndGet();
+                }
+            }));
+            AtomicInteger skipped = new AtomicInteger();
+            CompletableFuture<Void> queued = executor.submit(new TestOrderedRunnable("a", skipped::incrementAndGet));
+            CompletableFuture<Boolean> next = new CompletableFuture<>();
+            executor.submit(new TestOrderedRunnable("a", () -> next.complete(Thread.currentThread().isInterrupted())));
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(2, executor.getQueuedTaskCount());
+
+            Assert.assertTrue(queued.cancel(false));
+            Assert.assertTrue(queued.isCancelled());
+            Assert.assertEquals(1, executor.getQueuedTaskCount());
+
+            Assert.assertTrue(running.cancel(true));
+            Assert.assertTrue(running.isCancelled());
+            Assert.assertFalse(next.get(10, TimeUnit.SECONDS));
+            Assert.assertEquals(1, interrupted.get());
+            Assert.assertEquals(0, skipped.get());
+        } finally {
+            executor.shutDown();
+        }
+    }
+
+    /**
+     * Cancels every other task of a deep backlog, from the tail. Verifies that the
+     * cancelled tasks stop counting as queued right away, and are skipped, while
+     * the rest run in order.
+     */
+    @Test
+    public void testCancelDeepBacklog() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor("Test");
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            executor.submit(new TestOrderedRunnable("a", () -> await(release)));
+            List<Integer> executed = Collections.synchronizedList(new ArrayList<>());
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 20_000; ++i) {
+                int value = i;
+                futures.add(executor.submit(new TestOrderedRunnable("a", () -> executed.add(value))));
+            }
+            for (int i = futures.size() - 1; i >= 0; i -= 2) {
+                Assert.assertTrue(futures.get(i).cancel(false));
+            }
+            Assert.assertEquals(10_000, executor.getQueuedTaskCount());
+            Assert.assertEquals(10_000, executor.getLargestKeyBacklog());
+            release.countDown();
+            futures.get(futures.size() - 2).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(IntStream.range(0, 10_000).map(i -> 2 * i).boxed().collect(Collectors.toList()),
+                    executed);
+            Assert.assertEquals(0, executor.getQueuedTaskCount());
+        } finally {
+            executor.shutDown();
+        }
+    }
+
+    /**
+     * Cancels a task queued behind a blocked one. Verifies that what the task
+     * holds can be garbage collected while the key is still blocked.
+     */
+    @Test
+    public void testCancelReleasesTask() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor("Test");
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            executor.submit(new TestOrderedRunnable("a", () -> await(release)));
+            byte[] payload = new byte[1024 * 1024];
+            WeakReference<byte[]> held = new WeakReference<>(payload);
+            CompletableFuture<Void> future = executor.submit(holding("a", payload));
+            payload = null;
+            Assert.assertTrue(future.cancel(false));
+            for (int i = 0; i < 100 && held.get() != null; ++i) {
+                System.gc();
+                Thread.sleep(10);
+            }
+            Assert.assertNull(held.get());
+        } finally {
+            release.countDown();
+            executor.shutDown();
+        }
+    }
+
+    /**
+     * Fills up the per-key and global queue capacity behind blocked tasks, and
+     * verifies each of the overflow policies, along with their counters.
+     */
+    @Test
+    public void testQueueCapacity() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor("Test");
+        CountDownLatch latch = new CountDownLatch(1);
+        try {
+            executor.setQueueCapacity(2, 3);
+            List<Integer> results = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch started = new CountDownLatch(1);
+            executor.submit(new TestOrderedRunnable("a", () -> {
+                started.countDown();
+                await(latch);
+            }));
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            CompletableFuture<Void> oldest = executor.submit(new TestOrderedRunnable("a", () -> results.add(1)));
+            executor.submit(new TestOrderedRunnable("a", () -> results.add(2)));
+
+            try {
+                executor.submit(new TestOrderedRunnable("a", () -> results.add(3)));
+                Assert.fail();
+            } catch (RejectedExecutionException ree) {
+            }
+            Assert.assertEquals(1, executor.getOverflowCount(OrderedExecutor.OverflowPolicy.REJECT));
+
+            executor.setOverflowPolicy(OrderedExecutor.OverflowPolicy.DROP_OLDEST);
+            CompletableFuture<Void> newest = executor.submit(new TestOrderedRunnable("a", () -> results.add(4)));
+            Assert.assertTrue(oldest.isCompletedExceptionally());
+            Assert.assertEquals(1, executor.getOverflowCount(OrderedExecutor.OverflowPolicy.DROP_OLDEST));
+
+            executor.setOverflowPolicy(OrderedExecutor.OverflowPolicy.BLOCK, 20, TimeUnit.MILLISECONDS);
+            long start = System.nanoTime();
+            try {
+                executor.submit(new TestOrderedRunnable("a", () -> results.add(5)));
+                Assert.fail();
+            } catch (RejectedExecutionException ree) {
+            }
+            Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+            Assert.assertEquals(1, executor.getOverflowCount(OrderedExecutor.OverflowPolicy.BLOCK));
+
+            // Key "b" is idle, but the global capacity is reached.
+            CountDownLatch startedC = new CountDownLatch(1);
+            executor.submit(new TestOrderedRunnable("c", () -> {
+                startedC.countDown();
+                await(latch);
+            }));
+            Assert.assertTrue(startedC.await(10, TimeUnit.SECONDS));
+            executor.submit(new TestOrderedRunnable("c", () -> results.add(6)));
+            executor.setOverflowPolicy(OrderedExecutor.OverflowPolicy.CALLER_RUNS);
+            Thread caller = Thread.currentThread();
+            AtomicInteger ranInCaller = new AtomicInteger();
+            executor.submit(new TestOrderedRunnable("b", () -> {
+                if (Thread.currentThread() == caller) {
+                    ranInCaller.incrementAndGet();
+                }
+            })).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(1, ranInCaller.get());
+            Assert.assertEquals(1, executor.getOverflowCount(OrderedExecutor.OverflowPolicy.CALLER_RUNS));
+
+            latch.countDown();
+            newest.get(10, TimeUnit.SECONDS);
+            for (int i = 0; i < 100 && results.size() < 3; ++i) {
+                sleep(10);
+            }
+            Assert.assertEquals(Arrays.asList(2, 4), results.stream().filter(i -> i != 6).collect(Collectors.toList()));
+        } finally {
+            latch.countDown();
+            executor.shutDown();
+        }
+    }
+
+    /**
+     * Submits a burst of coalescing tasks with the same token behind a blocked
+     * task, along with plain ones. Verifies that only the latest coalescing task
+     * runs, in the place of the first one, and that the superseded ones are
+     * cancelled.
+     */
+    @Test
+    public void testCoalescing() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor("Test");
+        CountDownLatch latch = new CountDownLatch(1);
+        try {
+            executor.setQueueCapacity(3, Integer.MAX_VALUE);
+            List<String> results = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch started = new CountDownLatch(1);
+            executor.submit(new TestOrderedRunnable("a", () -> {
+                started.countDown();
+                await(latch);
+            }));
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            executor.submit(new TestOrderedRunnable("a", () -> results.add("first")));
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 1000; ++i) {
+                String value = "state-" + i;
+                futures.add(executor.submit(new TestCoalescingRunnable("a", "state", () -> results.add(value))));
+                if (i == 0) {
+                    executor.submit(new TestOrderedRunnable("a", () -> results.add("last")));
+                }
+            }
+            // The superseding tasks don't take up any room in the queue.
+            Assert.assertEquals(3, executor.getQueuedTaskCount());
+            Assert.assertEquals(999, executor.getSupersededTaskCount());
+            for (int i = 0; i < 999; ++i) {
+                Assert.assertTrue(futures.get(i).isCancelled());
+            }
+            try {
+                futures.get(0).get();
+                Assert.fail();
+            } catch (TaskSupersededException e) {
+            }
+            latch.countDown();
+            futures.get(999).get(10, TimeUnit.SECONDS);
+            for (int i = 0; i < 100 && results.size() < 3; ++i) {
+                sleep(10);
+            }
+            Assert.assertEquals(Arrays.asList("first", "state-999", "last"), results);
+        } finally {
+            latch.countDown();
+            executor.shutDown();
+        }
+    }
+
+    /**
+     * Lines up low and high priority keys behind a blocked single worker, and
+     * verifies that the high priority keys are picked up first, while the tasks
+     * of a key stay in order. Then, with aging, verifies that a low priority key
+     * which waited long enough goes ahead of a high priority one.
+     */
+    @Test
+    public void testPriority() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor("Test", 1, 1);
+        try {
+            List<String> results = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch latch = new CountDownLatch(1);
+            CountDownLatch started = new CountDownLatch(1);
+            executor.submit(new TestOrderedRunnable("x", () -> {
+                started.countDown();
+                await(latch);
+            }));
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            executor.submit(new TestOrderedRunnable("bulk-1", () -> results.add("bulk-1")));
+            executor.submit(new TestPrioritizedRunnable("control", 10, () -> results.add("control-1")));
+            executor.submit(new TestOrderedRunnable("control", () -> results.add("control-2")));
+            executor.submit(new TestOrderedRunnable("bulk-2", () -> results.add("bulk-2")));
+            executor.submit(new TestPrioritizedRunnable("heartbeat", 5, () -> results.add("heartbeat")));
+            Assert.assertEquals(4, executor.getReadyKeyCount());
+            latch.countDown();
+            executor.submit(new TestOrderedRunnable("bulk-2", () -> {
+            })).get(10, TimeUnit.SECONDS);
+            // The second task of the key "control" has the default priority, and the
+            // key gets ready again only after its first task.
+            Assert.assertEquals(Arrays.asList("control-1", "heartbeat", "bulk-1", "bulk-2", "control-2"), results);
+
+            results.clear();
+            executor.setPriorityAging(1, TimeUnit.MILLISECONDS);
+            CountDownLatch agingLatch = new CountDownLatch(1);
+            CountDownLatch agingStarted = new CountDownLatch(1);
+            executor.submit(new TestOrderedRunnable("x", () -> {
+                agingStarted.countDown();
+                await(agingLatch);
+            }));
+            Assert.assertTrue(agingStarted.await(10, TimeUnit.SECONDS));
+            executor.submit(new TestOrderedRunnable("bulk", () -> results.add("bulk")));
+            // The key "bulk" became ready before this point, and hence has waited longer
+            // than the 10 levels of priority age in, however loaded the machine is.
+            long readyBy = System.nanoTime();
+            while (System.nanoTime() - readyBy <= TimeUnit.MILLISECONDS.toNanos(10)) {
+                Thread.sleep(1);
+            }
+            executor.submit(new TestPrioritizedRunnable("control", 10, () -> results.add("control")));
+            agingLatch.countDown();
+            executor.submit(new TestOrderedRunnable("control", () -> {
+            })).get(10, TimeUnit.SECONDS);
+            executor.submit(new TestOrderedRunnable("bulk", () -> {
+            })).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(Arrays.asList("bulk", "control"), results);
+        } finally {
+            executor.shutDown();
+        }
+    }
+
+    /**
+     * With a single worker, lines up a tenant with 100 ready keys and another with
+     * a single busy key. Verifies that the tenants take turns on the worker, task
+     * by task, instead of the busy key getting a turn only after all the keys of
+     * the other tenant. Then, verifies that a weight of four gets four tasks a
+     * turn.
+     */
+    @Test
+    public void testFairScheduling() throws Exception {
+        // Without fair scheduling, "b" would get its turn only after all the 100 keys
+        // of "a".
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 20; ++i) {
+            expected.add("a");
+            expected.add("b");
+        }
+        expected.addAll(Collections.nCopies(80, "a"));
+        Assert.assertEquals(expected, runTenants(1));
+        expected.clear();
+        for (int i = 0; i < 5; ++i) {
+            expected.add("a");
+            expected.addAll(Collections.nCopies(4, "b"));
+        }
+        expected.addAll(Collections.nCopies(95, "a"));
+        Assert.assertEquals(expected, runTenants(4));
+    }
+
+    /**
+     * Runs 100 keys of tenant "a" and 20 tasks of a key of tenant "b" on a single
+     * worker, with each task taking exactly the worker time given to a group of
+     * weight one on its turn, by a clock advanced by the tasks themselves.
+     * 
+     * @param weight the weight of tenant "b".
+     * @return the tenants of the tasks, in the order they were executed.
+     */
+    private List<String> runTenants(int weight) throws Exception {
+        OrderedExecutor executor = new OrderedExecutor("Test", 1, 1);
+        CountDownLatch latch = new CountDownLatch(1);
+        try {
+            AtomicLong clock = new AtomicLong();
+            long quantum = TimeUnit.MILLISECONDS.toNanos(1);
+            executor.setWorkerClock(clock::get);
+            executor.setGroupExtractor(key -> ((String) key).split("/")[0]);
+            executor.setGroupWeight("b", weight);
+            List<String> results = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch started = new CountDownLatch(1);
+            executor.submit(new TestOrderedRunnable("x", () -> {
+                started.countDown();
+                await(latch);
+            }));
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; ++i) {
+                futures.add(executor.submit(new TestOrderedRunnable("a/" + i, () -> {
+                    results.add("a");
+                    clock.addAndGet(quantum);
+                })));
+            }
+            for (int i = 0; i < 20; ++i) {
+                futures.add(executor.submit(new TestOrderedRunnable("b/0", () -> {
+                    results.add("b");
+                    clock.addAndGet(quantum);
+                })));
+            }
+            latch.countDown();
+            for (Future<?> f : futures) {
+                f.get(10, TimeUnit.SECONDS);
+            }
+            return results;
+        } finally {
+            latch.countDown();
+            executor.shutDown();
+        }
+    }
+
+    /**
+     * Runs tasks behind a blocked task with the metrics enabled, and verifies the
+     * counts, gauges and durations, through both the pull API and the MBean.
+     */
+    @Test
+    public void testMetrics() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor("Test");
+        CountDownLatch latch = new CountDownLatch(1);
+        try {
+            executor.submit(new TestOrderedRunnable("a", () -> {
+            })).get(10, TimeUnit.SECONDS);
+            OrderedExecutorMetrics metrics = executor.getMetrics();
+            Assert.assertFalse(metrics.isEnabled());
+            Assert.assertEquals(0, metrics.getSubmittedTaskCount());
+
+            executor.setMetricsEnabled(true);
+            ObjectName objectName = executor.registerMBean();
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            CountDownLatch started = new CountDownLatch(1);
+            executor.submit(new TestOrderedRunnable("a", () -> {
+                started.countDown();
+                await(latch);
+            }));
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 5; ++i) {
+                futures.add(executor.submit(new TestOrderedRunnable("a", () -> sleep(2))));
+            }
+            CountDownLatch executed = new CountDownLatch(1);
+            executor.execute(new TestOrderedRunnable("b", executed::countDown));
+            Assert.assertTrue(executed.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(5, metrics.getLargestKeyBacklog());
+            Assert.assertEquals(5, server.getAttribute(objectName, "QueuedTaskCount"));
+            sleep(20);
+            latch.countDown();
+            for (Future<?> f : futures) {
+                f.get(10, TimeUnit.SECONDS);
+            }
+            // The futures complete before the run gets recorded.
+            for (int i = 0; i < 100 && metrics.getCompletedTaskCount() < 7; ++i) {
+                sleep(10);
+            }
+            Assert.assertEquals(7L, server.getAttribute(objectName, "SubmittedTaskCount"));
+            Assert.assertEquals(7, metrics.getCompletedTaskCount());
+            Assert.assertEquals(7, metrics.getExecutionTime().getCount());
+            Assert.assertEquals(7, metrics.getQueueWait().getCount());
+            Assert.assertTrue(metrics.getQueueWaitMax() >= TimeUnit.MILLISECONDS.toNanos(20));
+            Assert.assertTrue(metrics.getExecutionTimeMax() >= TimeUnit.MILLISECONDS.toNanos(20));
+            Assert.assertTrue(metrics.getExecutionTimeP50() >= TimeUnit.MILLISECONDS.toNanos(2));
+            Assert.assertTrue(metrics.getExecutionTimeP50() <= metrics.getExecutionTimeP99());
+
+            executor.shutDown();
+            Assert.assertFalse(server.isRegistered(objectName));
+            try {
+                executor.submit(new TestOrderedRunnable("a", () -> {
+                }));
+                Assert.fail();
+            } catch (RejectedExecutionException ree) {
+            }
+            Assert.assertEquals(1, metrics.getRejectedTaskCount());
+        } finally {
+            latch.countDown();
+            executor.shutDown();
+        }
+    }
+
+    /**
+     * Submits callables interleaved with runnables of the same key, and verifies
+     * that the futures carry the typed results, in the order of submission, or
+     * the exception thrown.
+     */
+    @Test
+    public void testCallable() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor("Test");
+        try {
+            AtomicInteger counter = new AtomicInteger();
+            List<CompletableFuture<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; ++i) {
+                executor.submit(new TestOrderedRunnable("a", counter::incrementAndGet));
+                futures.add(executor.submit(new TestOrderedCallable<>("a", counter::incrementAndGet)));
+            }
+            for (int i = 0; i < 100; ++i) {
+                Assert.assertEquals(2 * (i + 1), futures.get(i).get(10, TimeUnit.SECONDS).intValue());
+            }
+            CompletableFuture<String> composed = executor.submit(new TestOrderedCallable<>("b", () -> "result"))
+                    .thenApply(String::toUpperCase);
+            Assert.assertEquals("RESULT", composed.get(10, TimeUnit.SECONDS));
+            try {
+                executor.submit(new TestOrderedCallable<Void>("b", () -> {
+                    throw new IOException("failed");
+                })).get(10, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IOException);
+            }
+        } finally {
+            executor.shutDown();
+        }
+    }
+
+    /**
+     * Schedules tasks with a delay, and at a fixed rate. Verifies that a delayed
+     * task joins the lane of its key only when due, that a cancelled one never
+     * runs, that a periodic task runs until cancelled, and that the pending ones
+     * are rejected on shut down.
+     */
+    @Test
+    public void testSchedule() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor("Test");
+        try {
+            List<String> order = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            executor.submit(new TestOrderedRunnable("a", () -> {
+                order.add("first");
+                started.countDown();
+                await(release);
+            }));
+            // Until it starts, the first task counts as queued.
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            CompletableFuture<Void> delayed = executor.schedule(new TestOrderedRunnable("a", () -> order.add("delayed")),
+                    50, TimeUnit.MILLISECONDS);
+            CompletableFuture<Void> cancelled = executor
+                    .schedule(new TestOrderedRunnable("a", () -> order.add("cancelled")), 50, TimeUnit.MILLISECONDS);
+            Assert.assertTrue(cancelled.cancel(false));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (executor.getQueuedTaskCount() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            Assert.assertEquals(1, executor.getQueuedTaskCount());
+            CompletableFuture<Void> late = executor.submit(new TestOrderedRunnable("a", () -> order.add("late")));
+            release.countDown();
+            late.get(10, TimeUnit.SECONDS);
+            Assert.assertTrue(delayed.isDone());
+            Assert.assertEquals(Arrays.asList("first", "delayed", "late"), order);
+
+            AtomicInteger runs = new AtomicInteger();
+            CountDownLatch fiveRuns = new CountDownLatch(5);
+            CompletableFuture<Void> periodic = executor.scheduleAtFixedRate(new TestOrderedRunnable("b", () -> {
+                runs.incrementAndGet();
+                fiveRuns.countDown();
+            }), 0, 5, TimeUnit.MILLISECONDS);
+            Assert.assertTrue(fiveRuns.await(10, TimeUnit.SECONDS));
+            periodic.cancel(false);
+            int runsAtCancel = runs.get();
+            Thread.sleep(50);
+            Assert.assertTrue(runs.get() <= runsAtCancel + 1);
+
+            CompletableFuture<Void> pending = executor.schedule(new TestOrderedRunnable("c", () -> {
+            }), 1, TimeUnit.HOURS);
+            executor.shutDown();
+            try {
+                pending.get(10, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+            try {
+                executor.schedule(new TestOrderedRunnable("c", () -> {
+                }), 1, TimeUnit.MILLISECONDS);
+                Assert.fail();
+            } catch (RejectedExecutionException ree) {
+            }
+        } finally {
+            executor.shutDown();
+        }
+    }
+
+    /**
+     * Schedules a task on an executor whose shared pool blocks the hand over, and
+     * then a task on another executor. Verifies that the second task runs when
+     * due, as the timer thread shared by the executors is not held up by the
+     * first one.
+     */
+    @Test
+    public void testScheduleWithBlockingPool() throws Exception {
+        CountDownLatch unblock = new CountDownLatch(1);
+        Executor blockingPool = r -> {
+            await(unblock);
+            new Thread(r).start();
+        };
+        OrderedExecutor blocked = new OrderedExecutor("Blocked", 4, blockingPool);
+        OrderedExecutor other = new OrderedExecutor("Other");
+        try {
+            CompletableFuture<Void> first = blocked.schedule(new TestOrderedRunnable("a", () -> {
+            }), 1, TimeUnit.MILLISECONDS);
+            CompletableFuture<Void> second = other.schedule(new TestOrderedRunnable("a", () -> {
+            }), 50, TimeUnit.MILLISECONDS);
+            second.get(10, TimeUnit.SECONDS);
+            Assert.assertFalse(first.isDone());
+            unblock.countDown();
+            first.get(10, TimeUnit.SECONDS);
+        } finally {
+            unblock.countDown();
+            blocked.shutDown();
+            other.shutDown();
+        }
+    }
+
+    /**
+     * Submits transfers between pairs of accounts, interleaved with deposits to
+     * single accounts, on a striped executor with bounded workers. Verifies that
+     * no two tasks of an account overlap, that each account sees its tasks in the
+     * order of submission, and that the unrelated accounts ran in parallel.
+     */
+    @Test
+    public void testMultiKey() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor("Test", 4, 4);
+        try {
+            int accounts = 8;
+            long[] balances = new long[accounts];
+            AtomicInteger[] busy = new AtomicInteger[accounts];
+            List<List<Integer>> executed = new ArrayList<>();
+            List<List<Integer>> submitted = new ArrayList<>();
+            for (int i = 0; i < accounts; ++i) {
+                busy[i] = new AtomicInteger();
+                executed.add(Collections.synchronizedList(new ArrayList<>()));
+                submitted.add(new ArrayList<>());
+            }
+            AtomicInteger overlaps = new AtomicInteger();
+            AtomicInteger concurrency = new AtomicInteger();
+            AtomicInteger maxConcurrency = new AtomicInteger();
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 4000; ++i) {
+                int sequence = i;
+                int from = i % accounts;
+                boolean deposit = i % 3 == 0;
+                int to = deposit ? from : (i * 7 + 3) % accounts;
+                Set<Integer> keys = new HashSet<>(Arrays.asList(from, to));
+                keys.forEach(k -> submitted.get(k).add(sequence));
+                Runnable body = () -> {
+                    maxConcurrency.accumulateAndGet(concurrency.incrementAndGet(), Math::max);
+                    for (int k : keys) {
+                        if (busy[k].getAndIncrement() != 0) {
+                            overlaps.incrementAndGet();
+                        }
+                        executed.get(k).add(sequence);
+                    }
+                    if (deposit) {
+                        balances[from] += 1;
+                    } else {
+                        balances[from] -= 10;
+                        balances[to] += 10;
+                    }
+                    LockSupport.parkNanos(20_000);
+                    for (int k : keys) {
+                        busy[k].decrementAndGet();
+                    }
+                    concurrency.decrementAndGet();
+                };
+                futures.add(executor.submit(deposit ? new TestOrderedRunnable(from, body)
+                        : new TestMultiKeyRunnable(keys, body)));
+            }
+            for (CompletableFuture<Void> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+            Assert.assertEquals(0, overlaps.get());
+            Assert.assertTrue(maxConcurrency.get() > 1);
+            long total = 0;
+            for (int i = 0; i < accounts; ++i) {
+                Assert.assertEquals(submitted.get(i), executed.get(i));
+                total += balances[i];
+            }
+            Assert.assertEquals(1334, total);
+            Assert.assertEquals(0, executor.getQueuedTaskCount());
+        } finally {
+            executor.shutDown();
+        }
+    }
+
+    /**
+     * Queues a task on three keys behind blocked tasks on two of them, while the
+     * lane of the third waits at its barrier. Verifies that the task is counted
+     * once as queued, and that shutting down rejects it and clears the waiting
+     * lane.
+     */
+    @Test
+    public void testMultiKeyShutdown() throws Exception {
+        ThreadPoolExecutor workers = (ThreadPoolExecutor) Executors.newFixedThreadPool(3);
+        OrderedExecutor executor = new OrderedExecutor("Test", 4, workers);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            CountDownLatch started = new CountDownLatch(2);
+            for (String key : Arrays.asList("a", "b")) {
+                executor.submit(new TestOrderedRunnable(key, () -> {
+                    started.countDown();
+                    await(release);
+                }));
+            }
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            CompletableFuture<Void> multiKey = executor.submit(
+                    new TestMultiKeyRunnable(new HashSet<>(Arrays.asList("a", "b", "c")), () -> {
+                    }));
+            Assert.assertEquals(1, executor.getQueuedTaskCount());
+            // The lane of c is done running once it waits at the barrier.
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (workers.getCompletedTaskCount() < 1) {
+                Assert.assertTrue(System.nanoTime() - deadline < 0);
+                Thread.sleep(1);
+            }
+            Assert.assertEquals(1, executor.getQueuedTaskCount());
+            Assert.assertEquals(2, executor.getExecutingTaskCount());
+            Assert.assertEquals(3, executor.getActiveKeyCount());
+
+            executor.shutDown();
+            try {
+                multiKey.get(10, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+            Assert.assertEquals(0, executor.getQueuedTaskCount());
+            release.countDown();
+            while (executor.getExecutingTaskCount() > 0) {
+                Assert.assertTrue(System.nanoTime() - deadline < 0);
+                Thread.sleep(1);
+            }
+            Assert.assertEquals(0, executor.getActiveKeyCount());
+        } finally {
+            release.countDown();
+            executor.shutDown();
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * Submits tasks on a topic and its partitions. Verifies that the partitions
+     * run in parallel, that a task on the topic waits for the partition tasks
+     * submitted before it, and that the partition tasks submitted after it, on
+     * new and existing partitions alike, wait for it.
+     */
+    @Test
+    public void testHierarchicalKeys() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor("Test", 4);
+        try {
+            HierarchicalKey topic = HierarchicalKey.of("topic");
+            List<String> events = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch allStarted = new CountDownLatch(4);
+            CountDownLatch release = new CountDownLatch(1);
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; ++i) {
+                String name = "partition-" + i;
+                futures.add(executor.submit(new TestOrderedRunnable(topic.child(name), () -> {
+                    allStarted.countDown();
+                    await(release);
+                    events.add(name);
+                })));
+            }
+            // All the siblings are running at once.
+            Assert.assertTrue(allStarted.await(10, TimeUnit.SECONDS));
+            futures.add(executor.submit(new TestOrderedRunnable(topic, () -> events.add("topic"))));
+            for (int i = 2; i < 6; ++i) {
+                String name = "partition-" + i;
+                futures.add(executor
+                        .submit(new TestOrderedRunnable(HierarchicalKey.of("topic", name), () -> events.add(name + "-late"))));
+            }
+            futures.add(executor.submit(new TestOrderedRunnable("unrelated", () -> events.add("unrelated"))));
+            futures.get(futures.size() - 1).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(Arrays.asList("unrelated"), events);
+            release.countDown();
+            for (CompletableFuture<Void> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+            int topicIndex = events.indexOf("topic");
+            Assert.assertEquals(5, topicIndex);
+            for (int i = 2; i < 6; ++i) {
+                Assert.assertTrue(events.indexOf("partition-" + i + "-late") > topicIndex);
+            }
+            Assert.assertEquals(0, executor.getQueuedTaskCount());
+            // The lanes leave shortly after the futures complete.
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (executor.getExecutingTaskCount() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            Assert.assertEquals(0, executor.getExecutingTaskCount());
+        } finally {
+            executor.shutDown();
+        }
+    }
+
+    /**
+     * Runs two executors on one shared pool of workers. Verifies that each keeps
+     * the order of its own keys and its own metrics, even when both use the same
+     * keys, and that shutting down one leaves the other and the pool running.
+     */
+    @Test
+    public void testSharedPool() throws Exception {
+        ExecutorService workers = Executors.newFixedThreadPool(4);
+        OrderedExecutor first = new OrderedExecutor("First", 4, workers);
+        OrderedExecutor second = new OrderedExecutor("Second", 4, workers);
+        try {
+            first.getMetrics().setEnabled(true);
+            second.getMetrics().setEnabled(true);
+            List<List<Integer>> executed = new ArrayList<>();
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int k = 0; k < 8; ++k) {
+                executed.add(Collections.synchronizedList(new ArrayList<>()));
+            }
+            for (int i = 0; i < 200; ++i) {
+                for (int k = 0; k < 8; ++k) {
+                    List<Integer> sink = executed.get(k);
+                    int value = i;
+                    OrderedExecutor executor = k < 4 ? first : second;
+                    futures.add(executor.submit(new TestOrderedRunnable(k % 4, () -> sink.add(value))));
+                }
+            }
+            for (CompletableFuture<Void> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+            for (List<Integer> sink : executed) {
+                Assert.assertEquals(IntStream.range(0, 200).boxed().collect(Collectors.toList()), sink);
+            }
+            // The futures complete before the run gets recorded.
+            for (int i = 0; i < 100 && (first.getMetrics().getCompletedTaskCount() < 800
+                    || second.getMetrics().getCompletedTaskCount() < 800); ++i) {
+                sleep(10);
+            }
+            Assert.assertEquals(800, first.getMetrics().getCompletedTaskCount());
+            Assert.assertEquals(800, second.getMetrics().getCompletedTaskCount());
+            Assert.assertEquals(4, first.getPoolSize());
+
+            first.shutDown();
+            Assert.assertTrue(first.isShutdown());
+            Assert.assertFalse(workers.isShutdown());
+            try {
+                first.submit(new TestOrderedRunnable(0, () -> {
+                }));
+                Assert.fail("Accepted a task after shut down");
+            } catch (RejectedExecutionException expected) {
+            }
+            second.submit(new TestOrderedRunnable(0, () -> {
+            })).get(10, TimeUnit.SECONDS);
+        } finally {
+            first.shutDown();
+            second.shutDown();
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * Starts a bounded pool with a single worker, adapting up to four, and loads it
+     * with slow tasks on many keys. Verifies that workers get added while the keys
+     * wait, within the bounds, and let go once the load is gone.
+     */
+    @Test
+    public void testAdaptiveWorkerCount() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor("Test", 4, 1);
+        try {
+            executor.setAdaptiveWorkerCount(1, 4, 1, TimeUnit.MILLISECONDS);
+            OrderedExecutorMetrics metrics = executor.getMetrics();
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; ++i) {
+                for (int k = 0; k < 16; ++k) {
+                    futures.add(executor.submit(new TestOrderedRunnable(k, () -> LockSupport.parkNanos(500_000))));
+                }
+            }
+            int largestPoolSize = 0;
+            for (CompletableFuture<Void> future : futures) {
+                largestPoolSize = Math.max(largestPoolSize, executor.getPoolSize());
+                future.get(10, TimeUnit.SECONDS);
+            }
+            Assert.assertTrue(metrics.getWorkerIncreaseCount() > 0);
+            Assert.assertTrue(largestPoolSize > 1);
+            Assert.assertTrue(largestPoolSize <= 4);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (executor.getPoolSize() > 1 && System.nanoTime() < deadline) {
+                Thread.sleep(20);
+            }
+            Assert.assertTrue(executor.getPoolSize() <= 1);
+            Assert.assertTrue(metrics.getWorkerDecreaseCount() > 0);
+            Assert.assertEquals(0, metrics.getReadyWaitMean());
+        } finally {
+            executor.shutDown();
+        }
+        OrderedExecutor unbounded = new OrderedExecutor("Test", 4);
+        try {
+            unbounded.setAdaptiveWorkerCount(1, 4, 1, TimeUnit.MILLISECONDS);
+            Assert.fail("Adapted an unbounded pool");
+        } catch (IllegalStateException expected) {
+        } finally {
+            unbounded.shutDown();
+        }
+    }
+
+    /**
+     * Holds up a key while tasks with short deadlines queue behind, along with
+     * tasks without deadlines. Verifies that the late expiring tasks are skipped,
+     * completing their futures as expired and reaching the expiry handler, while
+     * the others run in order.
+     */
+    @Test
+    public void testExpiringTasks() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor("Test");
+        try {
+            List<OrderedRunnable> expired = Collections.synchronizedList(new ArrayList<>());
+            executor.setExpiryHandler(expired::add);
+            List<Integer> executed = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch release = new CountDownLatch(1);
+            executor.submit(new TestOrderedRunnable("a", () -> await(release)));
+            long soon = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50);
+            long later = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 10; ++i) {
+                int value = i;
+                long deadline = i % 3 == 0 ? soon : later;
+                futures.add(executor.submit(new TestExpiringRunnable("a", deadline, () -> executed.add(value))));
+                executor.execute(new TestOrderedRunnable("a", () -> executed.add(100 + value)));
+            }
+            Thread.sleep(100);
+            release.countDown();
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < 10; ++i) {
+                if (i % 3 == 0) {
+                    try {
+                        futures.get(i).get(10, TimeUnit.SECONDS);
+                        Assert.fail("Ran an expired task");
+                    } catch (TaskExpiredException e) {
+                        Assert.assertTrue(futures.get(i).isCancelled());
+                    }
+                } else {
+                    futures.get(i).get(10, TimeUnit.SECONDS);
+                    expected.add(i);
+                }
+                expected.add(100 + i);
+            }
+            executor.submit(new TestOrderedRunnable("a", () -> {
+            })).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(expected, executed);
+            Assert.assertEquals(4, executor.getExpiredTaskCount());
+            Assert.assertEquals(4, executor.getMetrics().getExpiredTaskCount());
+            Assert.assertEquals(4, expired.size());
+            Assert.assertTrue(expired.get(0) instanceof TestExpiringRunnable);
+        } finally {
+            executor.shutDown();
+        }
+    }
+
+    /**
+     * Processes a large stream over ten keys, with a small bound on the elements
+     * in flight. Verifies that each key sees its elements in the encounter order,
+     * that the stream is pulled no faster than the elements get processed, and
+     * that a failing element stops the pulling and fails the returned future.
+     */
+    @Test
+    public void testForEachOrdered() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor("Test", 4, 4);
+        try {
+            List<List<Integer>> executed = new ArrayList<>();
+            for (int k = 0; k < 10; ++k) {
+                executed.add(Collections.synchronizedList(new ArrayList<>()));
+            }
+            AtomicInteger inFlight = new AtomicInteger();
+            AtomicInteger maxInFlight = new AtomicInteger();
+            executor.forEachOrdered(IntStream.range(0, 10_000).boxed().peek(i -> {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            }), i -> i % 10, i -> {
+                executed.get(i % 10).add(i);
+                inFlight.decrementAndGet();
+            }, 16).get(10, TimeUnit.SECONDS);
+            for (int k = 0; k < 10; ++k) {
+                int key = k;
+                Assert.assertEquals(
+                        IntStream.range(0, 10_000).filter(i -> i % 10 == key).boxed().collect(Collectors.toList()),
+                        executed.get(k));
+            }
+            // The element pulled while waiting for a permit is in flight too.
+            Assert.assertTrue(maxInFlight.get() <= 17);
+
+            AtomicInteger pulled = new AtomicInteger();
+            CompletableFuture<Void> failed = executor.forEachOrdered(
+                    IntStream.range(0, 10_000).boxed().peek(i -> pulled.incrementAndGet()), i -> i % 10, i -> {
+                        if (i == 100) {
+                            throw new IllegalStateException("Failed " + i);
+                        }
+                    }, 16);
+            try {
+                failed.get(10, TimeUnit.SECONDS);
+                Assert.fail("Ignored a failed element");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            Assert.assertTrue(pulled.get() < 10_000);
+        } finally {
+            executor.shutDown();
+        }
+    }
+
+    private static TestOrderedRunnable holding(Object key, byte[] payload) {
+        return new TestOrderedRunnable(key, () -> payload[0] = 1);
+    }
+
     private void verifyOrder(Stats stats, String[] expectedOrder) {
         List<String> expectedOrderList = Arrays.asList(expectedOrder);
         List<String> actualOrderList = stats.results.stream().map((d) -> d.name)
@@ -293,6 +1575,122 @@ public class OrderedExecutorTest {
         }
     }
 
+    private static class TestExpiringRunnable extends TestOrderedRunnable implements ExpiringOrderedRunnable {
+
+        private final long deadlineNanos;
+
+        TestExpiringRunnable(Object orderingKey, long deadlineNanos, Runnable runnable) {
+            super(orderingKey, runnable);
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        @Override
+        public long getDeadlineNanos() {
+            return deadlineNanos;
+        }
+    }
+
+    private static class TestOrderedRunnable implements OrderedRunnable {
+
+        private final Object orderingKey;
+        private final Runnable runnable;
+
+        TestOrderedRunnable(Object orderingKey, Runnable runnable) {
+            this.orderingKey = orderingKey;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            runnable.run();
+        }
+
+        @Override
+        public Object getOrderingKey() {
+            return orderingKey;
+        }
+    }
+
+    private static class TestCoalescingRunnable extends TestOrderedRunnable implements CoalescingOrderedRunnable {
+
+        private final Object coalescingToken;
+
+        TestCoalescingRunnable(Object orderingKey, Object coalescingToken, Runnable runnable) {
+            super(orderingKey, runnable);
+            this.coalescingToken = coalescingToken;
+        }
+
+        @Override
+        public Object getCoalescingToken() {
+            return coalescingToken;
+        }
+    }
+
+    private static class TestPrioritizedRunnable extends TestOrderedRunnable implements PrioritizedOrderedRunnable {
+
+        private final int priority;
+
+        TestPrioritizedRunnable(Object orderingKey, int priority, Runnable runnable) {
+            super(orderingKey, runnable);
+            this.priority = priority;
+        }
+
+        @Override
+        public int getPriority() {
+            return priority;
+        }
+    }
+
+    private static class TestMultiKeyRunnable implements MultiKeyOrderedRunnable {
+
+        private final Set<?> orderingKeys;
+        private final Runnable runnable;
+
+        TestMultiKeyRunnable(Set<?> orderingKeys, Runnable runnable) {
+            this.orderingKeys = orderingKeys;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            runnable.run();
+        }
+
+        @Override
+        public Set<?> getOrderingKeys() {
+            return orderingKeys;
+        }
+    }
+
+    private static class TestOrderedCallable<V> implements OrderedCallable<V> {
+
+        private final Object orderingKey;
+        private final Callable<V> callable;
+
+        TestOrderedCallable(Object orderingKey, Callable<V> callable) {
+            this.orderingKey = orderingKey;
+            this.callable = callable;
+        }
+
+        @Override
+        public V call() throws Exception {
+            return callable.call();
+        }
+
+        @Override
+        public Object getOrderingKey() {
+            return orderingKey;
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
     private void runInSingleThread(final Stats stats, int count, String name, long delay, boolean sameKey) {
         DelayedOrderedRunnable[] orderedRunnables = new DelayedOrderedRunnable[count];
         for (int i = 0; i < count; ++i) {
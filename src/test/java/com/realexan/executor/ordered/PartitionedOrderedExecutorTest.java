@@ -0,0 +1,212 @@
+package com.realexan.executor.ordered;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for PartitionedOrderedExecutor.
+ *
+ * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+ *
+ */
+public class PartitionedOrderedExecutorTest {
+
+    private static class Task implements OrderedRunnable {
+
+        private final String key;
+        private final String producer;
+        private final int sequence;
+        private final List<Task> results;
+        private Thread thread;
+
+        Task(String key, int sequence, List<Task> results) {
+            this(key, key, sequence, results);
+        }
+
+        Task(String key, String producer, int sequence, List<Task> results) {
+            this.key = key;
+            this.producer = producer;
+            this.sequence = sequence;
+            this.results = results;
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            results.add(this);
+        }
+
+        @Override
+        public Object getOrderingKey() {
+            return key;
+        }
+    }
+
+    /**
+     * 8 producer threads submitting tasks for 16 keys, over 4 partitions. Verifies
+     * that the tasks of each producer for a key are executed in the order they
+     * were submitted, and that all the tasks of a key are executed by the same
+     * thread.
+     */
+    @Test
+    public void testOrdering() throws Exception {
+        PartitionedOrderedExecutor executor = new PartitionedOrderedExecutor("Test", 4);
+        List<Task> results = Collections.synchronizedList(new ArrayList<>());
+        List<Future<?>> futures = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> producers = new ArrayList<>();
+        try {
+            for (int p = 0; p < 8; ++p) {
+                String producer = "producer-" + p;
+                int first = p;
+                Thread t = new Thread(() -> {
+                    for (int i = 0; i < 5000; ++i) {
+                        String key = "key-" + ((first + i) % 16);
+                        futures.add(executor.submit(new Task(key, producer, i, results)));
+                    }
+                });
+                producers.add(t);
+                t.start();
+            }
+            for (Thread t : producers) {
+                t.join();
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+            Assert.assertEquals(40000, results.size());
+            for (int p = 0; p < 8; ++p) {
+                String producer = "producer-" + p;
+                List<Task> produced = results.stream().filter(t -> t.producer.equals(producer))
+                        .collect(Collectors.toList());
+                Assert.assertEquals(5000, produced.size());
+                for (int k = 0; k < 16; ++k) {
+                    String key = "key-" + k;
+                    List<Integer> sequences = produced.stream().filter(t -> t.key.equals(key)).map(t -> t.sequence)
+                            .collect(Collectors.toList());
+                    for (int i = 1; i < sequences.size(); ++i) {
+                        Assert.assertTrue(sequences.get(i - 1) < sequences.get(i));
+                    }
+                }
+            }
+            for (int k = 0; k < 16; ++k) {
+                String key = "key-" + k;
+                Assert.assertEquals(1,
+                        results.stream().filter(t -> t.key.equals(key)).map(t -> t.thread).distinct().count());
+            }
+            Assert.assertEquals(0, executor.getQueuedTaskCount());
+        } finally {
+            executor.shutDown();
+        }
+    }
+
+    /**
+     * Verifies that the threads of the partitions are daemon threads by default,
+     * and come from the thread factory, if given.
+     */
+    @Test
+    public void testThreadFactory() throws Exception {
+        List<Task> results = Collections.synchronizedList(new ArrayList<>());
+        PartitionedOrderedExecutor executor = new PartitionedOrderedExecutor("Test", 2);
+        try {
+            Task task = new Task("key", 0, results);
+            executor.submit(task).get(10, TimeUnit.SECONDS);
+            Assert.assertTrue(task.thread.isDaemon());
+        } finally {
+            executor.shutDown();
+        }
+        AtomicInteger created = new AtomicInteger();
+        executor = new PartitionedOrderedExecutor("Test", 2, r -> {
+            created.incrementAndGet();
+            return new Thread(r, "custom");
+        });
+        try {
+            Task task = new Task("key", 0, results);
+            executor.submit(task).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(2, created.get());
+            Assert.assertEquals("custom", task.thread.getName());
+            Assert.assertFalse(task.thread.isDaemon());
+        } finally {
+            executor.shutDown();
+        }
+    }
+
+    /**
+     * Runs a task which interrupts its thread, followed by a task on another key
+     * of the same partition. Verifies that the second task doesn't see the
+     * interrupt.
+     */
+    @Test
+    public void testInterruptNotLeaked() throws Exception {
+        PartitionedOrderedExecutor executor = new PartitionedOrderedExecutor("Test", 1);
+        try {
+            executor.submit(new OrderedRunnable() {
+                @Override
+                public void run() {
+                    Thread.currentThread().interrupt();
+                }
+
+                @Override
+                public Object getOrderingKey() {
+                    return "a";
+                }
+            }).get(10, TimeUnit.SECONDS);
+            AtomicBoolean interrupted = new AtomicBoolean(true);
+            executor.submit(new OrderedRunnable() {
+                @Override
+                public void run() {
+                    interrupted.set(Thread.currentThread().isInterrupted());
+                }
+
+                @Override
+                public Object getOrderingKey() {
+                    return "b";
+                }
+            }).get(10, TimeUnit.SECONDS);
+            Assert.assertFalse(interrupted.get());
+        } finally {
+            executor.shutDown();
+        }
+    }
+
+    /**
+     * Shuts down the executor while tasks are queued. Verifies that every task is
+     * either executed or rejected, and that no Future.get() gets stuck.
+     */
+    @Test
+    public void testShutdown() throws Exception {
+        PartitionedOrderedExecutor executor = new PartitionedOrderedExecutor("Test", 4);
+        List<Task> results = Collections.synchronizedList(new ArrayList<>());
+        List<Future<?>> futures = new ArrayList<>();
+        AtomicInteger rejected = new AtomicInteger();
+        for (int i = 0; i < 10000; ++i) {
+            futures.add(executor.submit(new Task("key-" + (i % 10), i, results)));
+        }
+        executor.shutDown();
+        try {
+            executor.submit(new Task("key", 0, results));
+            Assert.fail();
+        } catch (RejectedExecutionException ree) {
+        }
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+                rejected.incrementAndGet();
+            }
+        }
+        Assert.assertEquals(10000, results.size() + rejected.get());
+    }
+
+}
@@ -0,0 +1,354 @@
+package com.realexan.executor.ordered;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for TaskJournal.
+ *
+ * @author <a href="mailto:renjithalexander@gmail.com">Renjith Alexander</a>
+ *
+ */
+public class TaskJournalTest {
+
+    private static final List<String> results = Collections.synchronizedList(new ArrayList<>());
+
+    private static class Task implements OrderedRunnable, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String key;
+        private final int sequence;
+
+        Task(String key, int sequence) {
+            this.key = key;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            results.add(key + "-" + sequence);
+        }
+
+        @Override
+        public Object getOrderingKey() {
+            return key;
+        }
+    }
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("journal");
+        results.clear();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Submits tasks for two keys, while one of the keys is held up, and then
+     * abandons the executor and the journal, as in a crash. Verifies that a new
+     * journal on the same directory replays only the unfinished tasks, in the
+     * order of their keys.
+     */
+    @Test
+    public void testReplay() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor("Test");
+        TaskJournal journal = new TaskJournal(directory, 4096, 1, TimeUnit.HOURS);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            executor.setJournal(journal);
+            executor.submit(new OrderedRunnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                @Override
+                public Object getOrderingKey() {
+                    return "a";
+                }
+            });
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; ++i) {
+                executor.submit(new Task("a", i));
+                futures.add(executor.submit(new Task("b", i)));
+            }
+            for (CompletableFuture<Void> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+            // Spans several segments.
+            Assert.assertTrue(journal.getSegmentCount() > 1);
+            Assert.assertEquals(100, journal.getPendingCount());
+        } finally {
+            // Crashed, with the tasks of "a" pending. The executor leaves them alone.
+            executor.shutDown();
+            release.countDown();
+        }
+        results.clear();
+        OrderedExecutor recovered = new OrderedExecutor("Test");
+        try (TaskJournal reopened = new TaskJournal(directory, 4096, 1, TimeUnit.HOURS)) {
+            Assert.assertEquals(100, reopened.getPendingCount());
+            recovered.setJournal(reopened);
+            List<CompletableFuture<?>> futures = recovered.replayJournal();
+            Assert.assertEquals(100, futures.size());
+            for (CompletableFuture<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < 100; ++i) {
+                expected.add("a-" + i);
+            }
+            Assert.assertEquals(expected, results);
+            Assert.assertEquals(0, reopened.getPendingCount());
+            Assert.assertTrue(recovered.replayJournal().isEmpty());
+        } finally {
+            recovered.shutDown();
+            journal.close();
+        }
+    }
+
+    /**
+     * Two producers submit tasks for the same key, held up behind a blocked task,
+     * and the executor is shut down, leaving the tasks in the journal. Verifies
+     * that the journal replays them in the order they were queued, which is the
+     * order in which their futures got rejected.
+     */
+    @Test
+    public void testReplayOrderOfConcurrentProducers() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor("Test");
+        List<Integer> queued = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch release = new CountDownLatch(1);
+        try (TaskJournal journal = new TaskJournal(directory, 64 * 1024, 1, TimeUnit.HOURS)) {
+            executor.setJournal(journal);
+            executor.submit(new OrderedRunnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                @Override
+                public Object getOrderingKey() {
+                    return "a";
+                }
+            });
+            List<Thread> producers = new ArrayList<>();
+            for (int p = 0; p < 2; ++p) {
+                int first = p * 10_000;
+                Thread producer = new Thread(() -> {
+                    for (int i = 0; i < 1000; ++i) {
+                        int sequence = first + i;
+                        executor.submit(new Task("a", sequence)).whenComplete((result, t) -> queued.add(sequence));
+                    }
+                });
+                producers.add(producer);
+                producer.start();
+            }
+            for (Thread producer : producers) {
+                producer.join();
+            }
+            executor.shutDown();
+            Assert.assertEquals(2000, queued.size());
+        } finally {
+            executor.shutDown();
+            release.countDown();
+        }
+        try (TaskJournal reopened = new TaskJournal(directory, 64 * 1024, 1, TimeUnit.HOURS)) {
+            List<Integer> replayed = reopened.takeRecovered().stream().map(e -> ((Task) e.getTask()).sequence)
+                    .collect(Collectors.toList());
+            Assert.assertEquals(queued, replayed);
+        }
+    }
+
+    /**
+     * Submits a batch for two keys, while one of them is held up, with a journal
+     * set. Verifies that the batch is journaled, and that the unfinished tasks are
+     * replayed in order.
+     */
+    @Test
+    public void testSubmitAll() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor("Test");
+        CountDownLatch release = new CountDownLatch(1);
+        try (TaskJournal journal = new TaskJournal(directory, 4096, 1, TimeUnit.HOURS)) {
+            executor.setJournal(journal);
+            executor.submit(new OrderedRunnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                @Override
+                public Object getOrderingKey() {
+                    return "a";
+                }
+            });
+            List<Task> batch = new ArrayList<>();
+            for (int i = 0; i < 50; ++i) {
+                batch.add(new Task("a", i));
+                batch.add(new Task("b", i));
+            }
+            List<CompletableFuture<Void>> futures = executor.submitAll(batch);
+            for (int i = 1; i < futures.size(); i += 2) {
+                futures.get(i).get(10, TimeUnit.SECONDS);
+            }
+            Assert.assertEquals(50, journal.getPendingCount());
+        } finally {
+            executor.shutDown();
+            release.countDown();
+        }
+        try (TaskJournal reopened = new TaskJournal(directory, 4096, 1, TimeUnit.HOURS)) {
+            List<Task> tasks = reopened.takeRecovered().stream().map(e -> (Task) e.getTask())
+                    .collect(Collectors.toList());
+            Assert.assertTrue(tasks.stream().allMatch(t -> t.key.equals("a")));
+            Assert.assertEquals(IntStream.range(0, 50).boxed().collect(Collectors.toList()),
+                    tasks.stream().map(t -> t.sequence).collect(Collectors.toList()));
+        }
+    }
+
+    /**
+     * Leaves a few tasks unfinished among many finished ones, across segments.
+     * Verifies that compaction deletes the segments, moving the unfinished records
+     * forward, and that they are still replayed in order.
+     */
+    @Test
+    public void testCompaction() throws Exception {
+        try (TaskJournal journal = new TaskJournal(directory, 4096, 1, TimeUnit.HOURS)) {
+            List<TaskJournal.Entry> unfinished = new ArrayList<>();
+            for (int i = 0; i < 200; ++i) {
+                TaskJournal.Entry entry = journal.append(new Task("a", i));
+                if (i % 50 == 0) {
+                    unfinished.add(entry);
+                } else {
+                    entry.complete();
+                }
+            }
+            int segments = journal.getSegmentCount();
+            Assert.assertTrue(segments > 4);
+            journal.flushAndCompact();
+            Assert.assertTrue(journal.getSegmentCount() < segments);
+            Assert.assertEquals(4, journal.getPendingCount());
+            unfinished.get(0).complete();
+            journal.flushAndCompact();
+            Assert.assertEquals(3, journal.getPendingCount());
+        }
+        try (TaskJournal reopened = new TaskJournal(directory, 4096, 1, TimeUnit.HOURS)) {
+            List<Object> tasks = reopened.takeRecovered().stream().map(TaskJournal.Entry::getTask)
+                    .collect(Collectors.toList());
+            Assert.assertEquals(Arrays.asList(50, 100, 150),
+                    tasks.stream().map(t -> ((Task) t).sequence).collect(Collectors.toList()));
+        }
+    }
+
+    /**
+     * Appends three tasks, and zeroes the length of the middle record, as if the
+     * process crashed after reserving its space, before writing it. Verifies that
+     * the records on either side of it are still recovered.
+     */
+    @Test
+    public void testHalfWrittenRecord() throws Exception {
+        try (TaskJournal journal = new TaskJournal(directory, 4096, 1, TimeUnit.HOURS)) {
+            for (int i = 0; i < 3; ++i) {
+                journal.append(new Task("a", i));
+            }
+        }
+        try (FileChannel channel = FileChannel.open(directory.resolve("journal-0.seg"), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            int second = TaskJournal.recordSize(buffer.getInt(TaskJournal.LENGTH_OFFSET));
+            buffer.putInt(second + TaskJournal.LENGTH_OFFSET, 0);
+            buffer.force();
+        }
+        try (TaskJournal reopened = new TaskJournal(directory, 4096, 1, TimeUnit.HOURS)) {
+            Assert.assertEquals(2, reopened.getPendingCount());
+            List<Object> tasks = reopened.takeRecovered().stream().map(TaskJournal.Entry::getTask)
+                    .collect(Collectors.toList());
+            Assert.assertEquals(Arrays.asList(0, 2),
+                    tasks.stream().map(t -> ((Task) t).sequence).collect(Collectors.toList()));
+        }
+    }
+
+    /**
+     * Appends tasks across several segments, between two flushes. Verifies that
+     * a flush covers the segments replaced by a newer one in the meantime, as
+     * well as the ones with records marked since.
+     */
+    @Test
+    public void testFlushAfterRoll() throws Exception {
+        try (TaskJournal journal = new TaskJournal(directory, 4096, 1, TimeUnit.HOURS)) {
+            List<TaskJournal.Entry> entries = new ArrayList<>();
+            for (int i = 0; i < 100; ++i) {
+                entries.add(journal.append(new Task("a", i)));
+            }
+            Assert.assertTrue(journal.getSegmentCount() > 2);
+            Assert.assertEquals(journal.getSegmentCount(), journal.getUnflushedSegmentCount());
+            journal.flushAndCompact();
+            Assert.assertEquals(0, journal.getUnflushedSegmentCount());
+            entries.get(0).complete();
+            Assert.assertEquals(1, journal.getUnflushedSegmentCount());
+            journal.flushAndCompact();
+            Assert.assertEquals(0, journal.getUnflushedSegmentCount());
+        }
+    }
+
+    /**
+     * Closes the journal, and verifies that an append fails right away, without
+     * creating a segment.
+     */
+    @Test
+    public void testAppendAfterClose() throws Exception {
+        TaskJournal journal = new TaskJournal(directory, 4096, 1, TimeUnit.HOURS);
+        journal.append(new Task("a", 0));
+        journal.close();
+        try {
+            journal.append(new Task("a", 1));
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+        }
+        Assert.assertEquals(1, journal.getSegmentCount());
+        try (Stream<Path> files = Files.list(directory)) {
+            Assert.assertEquals(1, files.count());
+        }
+    }
+
+}